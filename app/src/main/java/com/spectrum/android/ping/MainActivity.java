@@ -24,21 +24,55 @@ import android.net.NetworkCapabilities;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.RadioGroup;
 import android.widget.TextView;
 
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 
 public class MainActivity extends Activity {
-    private TextView mLog;
+    // Results kept on screen, older ones scroll out for good
+    private static final int MAX_RESULTS = 500;
+    private static final long NOT_A_RESULT = Long.MIN_VALUE;
+
+    private TextView mSummary;
+    private ResultAdapter mAdapter;
     private PingRunnable mPingRunnable;
 
+    // Filled by the ping thread, drained at most once per frame
+    private final ArrayDeque<String> mPending = new ArrayDeque<>();
+    private final Summary mStats = new Summary();
+    private boolean mFramePosted;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            final String summary;
+            synchronized (mPending) {
+                while (!mPending.isEmpty()) {
+                    mAdapter.add(mPending.pollFirst());
+                }
+                summary = mStats.toString();
+                mFramePosted = false;
+            }
+            mAdapter.notifyDataSetChanged();
+            mSummary.setText(summary);
+        }
+    };
+
+    private final Runnable mPostFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
     public static Network getNetwork(final Context context, final int transport) {
         final ConnectivityManager connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 
@@ -57,7 +91,10 @@ public class MainActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        mLog = findViewById(R.id.log);
+        mSummary = findViewById(R.id.summary);
+        mAdapter = new ResultAdapter(MAX_RESULTS);
+        final ListView log = findViewById(R.id.log);
+        log.setAdapter(mAdapter);
         final EditText address = findViewById(R.id.address);
         final CheckBox wifi = findViewById(R.id.wifi);
         final RadioGroup ipRadioGroup = findViewById(R.id.ipGroup);
@@ -69,78 +106,132 @@ public class MainActivity extends Activity {
                     mPingRunnable.cancel();
                 }
 
-                final Class<? extends InetAddress> inetClass;
+                final int family;
                 final int radioId = ipRadioGroup.getCheckedRadioButtonId();
                 if (radioId == R.id.ipv6) {
-                    inetClass = Inet6Address.class;
+                    family = Resolver.FAMILY_IPV6;
                 } else if (radioId == R.id.ipv4) {
-                    inetClass = Inet4Address.class;
+                    family = Resolver.FAMILY_IPV4;
                 } else {
-                    inetClass = InetAddress.class;
+                    family = Resolver.FAMILY_ANY;
                 }
-                AsyncTask.SERIAL_EXECUTOR.execute(mPingRunnable =
-                        new PingRunnable(address.getText().toString(), wifi.isChecked(), inetClass));
+                final PingRunnable pingRunnable = new PingRunnable(address.getText().toString(), wifi.isChecked(), family);
+                synchronized (mPending) {
+                    // Results from the old run are ignored from here on
+                    mPingRunnable = pingRunnable;
+                    mPending.clear();
+                    mStats.reset();
+                }
+                mAdapter.clear();
+                mSummary.setText(null);
+                AsyncTask.SERIAL_EXECUTOR.execute(pingRunnable);
             }
         });
 
     }
 
     /**
-     * Attempts to get an IPv6 address
-     * @param host
-     * @return
-     * @throws UnknownHostException
+     * Queue a result for the next frame, from any thread
+     * @param timeMs reply time, {@link Ping#TIMED_OUT_MS}, or NOT_A_RESULT
      */
+    private void post(final PingRunnable source, final String line, final long timeMs) {
+        final boolean post;
+        synchronized (mPending) {
+            if (source != mPingRunnable) {
+                // Superseded by a newer run
+                return;
+            }
+            if (mPending.size() == MAX_RESULTS) {
+                mPending.pollFirst();
+            }
+            mPending.addLast(line);
+            if (timeMs != NOT_A_RESULT) {
+                mStats.add(timeMs);
+            }
+            post = !mFramePosted;
+            mFramePosted = true;
+        }
+        if (post) {
+            runOnUiThread(mPostFrame);
+        }
+    }
 
-    static InetAddress getInetAddress(final String host, Class<? extends InetAddress> inetClass) throws UnknownHostException {
-        final InetAddress[] inetAddresses = InetAddress.getAllByName(host);
-        InetAddress dest = null;
-        for (final InetAddress inetAddress : inetAddresses) {
-            if (inetClass.equals(inetAddress.getClass())) {
-                return inetAddress;
+    /**
+     * Running totals, updated per result rather than recomputed from the list
+     */
+    static class Summary {
+        private int mSent;
+        private int mReceived;
+        private long mMinMs;
+        private long mMaxMs;
+        private long mTotalMs;
+        private long mLastMs;
+
+        Summary() {
+            reset();
+        }
+
+        void reset() {
+            mSent = 0;
+            mReceived = 0;
+            mMinMs = Long.MAX_VALUE;
+            mMaxMs = 0;
+            mTotalMs = 0;
+            mLastMs = Ping.TIMED_OUT_MS;
+        }
+
+        void add(final long timeMs) {
+            mSent++;
+            mLastMs = timeMs;
+            if (timeMs != Ping.TIMED_OUT_MS) {
+                mReceived++;
+                mMinMs = Math.min(mMinMs, timeMs);
+                mMaxMs = Math.max(mMaxMs, timeMs);
+                mTotalMs += timeMs;
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (mSent == 0) {
+                return "";
+            }
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Sent ").append(mSent).append(" lost ").append(mSent - mReceived)
+                    .append(" (").append((mSent - mReceived) * 100 / mSent).append("%)");
+            if (mReceived > 0) {
+                sb.append("\nmin/avg/max ").append(mMinMs).append('/').append(mTotalMs / mReceived)
+                        .append('/').append(mMaxMs).append(" ms last ");
+                sb.append(mLastMs == Ping.TIMED_OUT_MS ? "timeout" : mLastMs + " ms");
             }
+            return sb.toString();
         }
-        throw new UnknownHostException("Could not find IP address of type " + inetClass.getSimpleName());
     }
 
     class PingRunnable implements Runnable {
-        final private StringBuilder mSb = new StringBuilder();
         final private String mHost;
         final private boolean mWifi;
-        final private Class<? extends InetAddress> mInetClass;
+        final private int mFamily;
 
         private Ping mPing;
 
-        final private Runnable textSetter = new Runnable() {
-            @Override
-            public void run() {
-                mLog.setText(mSb.toString());
-            }
-        };
-
-        public PingRunnable(final String host, final boolean wifi, final Class<? extends InetAddress> inetClass) {
+        public PingRunnable(final String host, final boolean wifi, final int family) {
             mHost = host;
             mWifi = wifi;
-            mInetClass = inetClass;
+            mFamily = family;
         }
 
         public void run() {
             try {
-                final InetAddress dest;
-                if (mInetClass == InetAddress.class) {
-                    dest = InetAddress.getByName(mHost);
-                } else {
-                    dest = getInetAddress(mHost, mInetClass);
-                }
-                Ping ping = new Ping(dest, new Ping.PingListener() {
+                final Ping ping = new Ping(mHost, mFamily, new Ping.PingListener() {
                     @Override
                     public void onPing(final long timeMs, final int count) {
-                        appendMessage("#" + count + " ms: " + timeMs + " ip: " + dest.getHostAddress(), null);
+                        appendMessage("#" + count + " ms: " + timeMs + " ip: " + getIp(), timeMs, null);
                     }
 
                     @Override
                     public void onPingException(final Exception e, final int count) {
-                        appendMessage("#" + count  + " ip: " + dest.getHostAddress(), e);
+                        appendMessage("#" + count  + " ip: " + getIp(), NOT_A_RESULT, e);
                     }
 
                 });
@@ -156,25 +247,24 @@ public class MainActivity extends Activity {
                 ping.run();
             } catch(UnknownHostException e) {
 
-                appendMessage("Unknown host", e);
+                appendMessage("Unknown host", NOT_A_RESULT, e);
             }
         }
 
+        private String getIp() {
+            final InetAddress dest = mPing.getDestination();
+            return dest == null ? mHost : dest.getHostAddress();
+        }
+
         public void cancel() {
             if (mPing != null) {
                 mPing.setCount(0);
             }
         }
 
-        private void appendMessage(final String message, final Exception e) {
+        private void appendMessage(final String message, final long timeMs, final Exception e) {
             Log.d("Ping", message, e);
-            mSb.append(message);
-            if (e != null) {
-                mSb.append(" Error: ");
-                mSb.append(e.getMessage());
-            }
-            mSb.append('\n');
-            runOnUiThread(textSetter);
+            post(this, e == null ? message : message + " Error: " + e.getMessage(), timeMs);
         }
     }
 }
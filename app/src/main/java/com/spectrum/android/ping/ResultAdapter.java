@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.util.Arrays;
+
+/**
+ * The most recent results, oldest first, in a fixed size ring.  Adding past capacity drops
+ * the oldest, so memory stays flat however long the ping runs.  UI thread only.
+ */
+class ResultAdapter extends BaseAdapter {
+    private final String[] mRing;
+    private int mStart;
+    private int mSize;
+
+    ResultAdapter(final int capacity) {
+        mRing = new String[capacity];
+    }
+
+    /**
+     * Add without notifying, call {@link #notifyDataSetChanged()} once after a batch
+     */
+    void add(final String line) {
+        if (mSize < mRing.length) {
+            mRing[(mStart + mSize++) % mRing.length] = line;
+        } else {
+            mRing[mStart] = line;
+            mStart = (mStart + 1) % mRing.length;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mRing, null);
+        mStart = 0;
+        mSize = 0;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mSize;
+    }
+
+    @Override
+    public String getItem(final int position) {
+        return mRing[(mStart + position) % mRing.length];
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(final int position, final View convertView, final ViewGroup parent) {
+        final TextView textView;
+        if (convertView == null) {
+            textView = (TextView)LayoutInflater.from(parent.getContext()).inflate(android.R.layout.simple_list_item_1, parent, false);
+        } else {
+            textView = (TextView)convertView;
+        }
+        textView.setText(getItem(position));
+        return textView;
+    }
+}
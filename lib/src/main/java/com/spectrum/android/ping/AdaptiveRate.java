@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+/**
+ * Adapts the delay between probes of a {@link Ping}: it backs off while the path is stable and
+ * bursts when something changes.
+ *
+ * Latency shifts are found with a two sided CUSUM on RTT normalized by an EWMA baseline and mean
+ * deviation, any loss counts as an anomaly.  After an anomaly the next probes go out at the
+ * minimum delay, then the delay grows again while the path stays quiet.  A token bucket keeps
+ * the total probe count within a budget.
+ * <pre>
+ * final AdaptiveRate rate = new AdaptiveRate(listener);
+ * final Ping ping = new Ping(dest, rate);
+ * ping.setCount(Integer.MAX_VALUE);
+ * rate.attach(ping);
+ * </pre>
+ * Callbacks run on the Ping's thread, like any other {@link Ping.PingListener}.
+ */
+public class AdaptiveRate implements Ping.PingListener {
+    private static final int WARMUP_SAMPLES = 4;
+    //Floor for the mean deviation, so a perfectly flat path doesn't make 1ms look like a shift
+    private static final double MIN_DEVIATION_MS = 1.0;
+
+    private final Ping.PingListener mListener;
+    private Ping mPing;
+
+    private int mMinDelayMs = 100;
+    private int mMaxDelayMs = 30000;
+    private float mBackoff = 2f;
+    private int mStableProbes = 4;
+    private int mBurstProbes = 10;
+    private float mAlpha = 0.125f;
+    private float mCusumThreshold = 8f;
+    private float mCusumDrift = 1f;
+
+    private int mBudgetProbes;
+    private long mBudgetPeriodMs;
+    private double mTokens;
+    private long mLastRefillMs;
+
+    private int mDelayMs;
+    private int mSamples;
+    private double mMeanMs;
+    private double mDeviationMs;
+    private double mCusumUp;
+    private double mCusumDown;
+    private int mStable;
+    private int mBurstRemaining;
+    private int mAnomalies;
+
+    /**
+     * @param listener receives every result, unchanged
+     */
+    public AdaptiveRate(final Ping.PingListener listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        mListener = listener;
+    }
+
+    /**
+     * Take over the delay of a Ping whose listener is this.  The Ping's current delay is the starting point.
+     */
+    public AdaptiveRate attach(final Ping ping) {
+        mPing = ping;
+        mDelayMs = clamp(ping.getDelayMs());
+        ping.setDelayMs(mDelayMs);
+        mLastRefillMs = now();
+        mTokens = mBudgetProbes;
+        return this;
+    }
+
+    /**
+     * @param minDelayMs delay between probes while bursting
+     * @param maxDelayMs longest delay when stable
+     */
+    public void setDelayRange(final int minDelayMs, final int maxDelayMs) {
+        if (minDelayMs < 0 || maxDelayMs < minDelayMs) {
+            throw new IllegalArgumentException("Invalid delay range: " + minDelayMs + "-" + maxDelayMs);
+        }
+        mMinDelayMs = minDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * @param stableProbes quiet probes before the delay grows
+     * @param backoff factor the delay grows by
+     */
+    public void setBackoff(final int stableProbes, final float backoff) {
+        if (stableProbes < 1 || backoff < 1) {
+            throw new IllegalArgumentException("Invalid backoff: " + stableProbes + " " + backoff);
+        }
+        mStableProbes = stableProbes;
+        mBackoff = backoff;
+    }
+
+    /**
+     * @param burstProbes probes sent at the minimum delay after an anomaly
+     */
+    public void setBurstProbes(final int burstProbes) {
+        mBurstProbes = burstProbes;
+    }
+
+    /**
+     * @param alpha EWMA weight of each new RTT
+     * @param threshold CUSUM alarm level, in mean deviations
+     * @param drift slack subtracted from each normalized sample, in mean deviations
+     */
+    public void setDetection(final float alpha, final float threshold, final float drift) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be in (0, 1]: " + alpha);
+        }
+        mAlpha = alpha;
+        mCusumThreshold = threshold;
+        mCusumDrift = drift;
+    }
+
+    /**
+     * Limit probes to a rate, with bursts of up to the whole budget
+     * @param probes probes allowed per period, 0 for no limit
+     */
+    public void setBudget(final int probes, final long periodMs) {
+        if (probes < 0 || (probes > 0 && periodMs <= 0)) {
+            throw new IllegalArgumentException("Invalid budget: " + probes + "/" + periodMs + "ms");
+        }
+        mBudgetProbes = probes;
+        mBudgetPeriodMs = periodMs;
+        mTokens = probes;
+        mLastRefillMs = now();
+    }
+
+    public int getDelayMs() {
+        return mDelayMs;
+    }
+
+    public boolean isBursting() {
+        return mBurstRemaining > 0;
+    }
+
+    /**
+     * @return latency shifts and losses detected
+     */
+    public int getAnomalies() {
+        return mAnomalies;
+    }
+
+    /**
+     * @return smoothed RTT
+     */
+    public double getMeanMs() {
+        return mMeanMs;
+    }
+
+    @Override
+    public void onPing(final long timeMs, final int index) {
+        mListener.onPing(timeMs, index);
+        final boolean anomaly = timeMs == Ping.TIMED_OUT_MS || detectShift(timeMs);
+        if (anomaly) {
+            mAnomalies++;
+            mBurstRemaining = mBurstProbes;
+            mStable = 0;
+        }
+
+        int delayMs;
+        if (mBurstRemaining > 0) {
+            mBurstRemaining--;
+            delayMs = mMinDelayMs;
+        } else if (++mStable >= mStableProbes) {
+            mStable = 0;
+            delayMs = (int)Math.min((long)mMaxDelayMs, (long)Math.ceil(Math.max(mDelayMs, 1) * mBackoff));
+        } else {
+            delayMs = mDelayMs;
+        }
+        mDelayMs = clamp(delayMs);
+
+        if (mPing != null) {
+            mPing.setDelayMs((int)Math.min(Integer.MAX_VALUE, Math.max(mDelayMs, budgetDelayMs())));
+        }
+    }
+
+    @Override
+    public void onPingException(final Exception e, final int index) {
+        mListener.onPingException(e, index);
+    }
+
+    /**
+     * Feed a RTT to the detector
+     * @return true if it signals a latency shift
+     */
+    private boolean detectShift(final long timeMs) {
+        mSamples++;
+        if (mSamples <= WARMUP_SAMPLES) {
+            // Plain average to seed the baseline
+            mMeanMs += (timeMs - mMeanMs) / mSamples;
+            mDeviationMs += (Math.abs(timeMs - mMeanMs) - mDeviationMs) / mSamples;
+            return false;
+        }
+        final double error = timeMs - mMeanMs;
+        final double z = error / Math.max(mDeviationMs, MIN_DEVIATION_MS);
+        mCusumUp = Math.max(0, mCusumUp + z - mCusumDrift);
+        mCusumDown = Math.max(0, mCusumDown - z - mCusumDrift);
+        mMeanMs += mAlpha * error;
+        mDeviationMs += mAlpha * (Math.abs(error) - mDeviationMs);
+        if (mCusumUp > mCusumThreshold || mCusumDown > mCusumThreshold) {
+            mCusumUp = 0;
+            mCusumDown = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a token for the probe just sent
+     * @return how long until the next probe is within budget
+     */
+    private long budgetDelayMs() {
+        if (mBudgetProbes == 0) {
+            return 0;
+        }
+        final long now = now();
+        final double msPerToken = (double)mBudgetPeriodMs / mBudgetProbes;
+        mTokens = Math.min(mBudgetProbes, mTokens + (now - mLastRefillMs) / msPerToken);
+        mLastRefillMs = now;
+        mTokens -= 1;
+        return mTokens >= 0 ? 0 : Math.round(-mTokens * msPerToken);
+    }
+
+    private int clamp(final int delayMs) {
+        return Math.max(mMinDelayMs, Math.min(mMaxDelayMs, delayMs));
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shares one ICMP socket and one reader thread per (IP version, Network, traffic class) among any number
+ * of {@link Ping}s, instead of a socket per Ping.
+ *
+ * The kernel gives every echo request sent on a datagram ICMP socket the same identifier, so
+ * replies can't be told apart by identifier.  Each registered Ping gets a 32 bit token
+ * instead, carried in an {@link EchoStamp}.  The reader verifies the stamp and routes the
+ * reply by token through a lock free {@link IntMap}, handing the Ping its RTT.
+ * <pre>
+ * final EchoDemux demux = EchoDemux.getDefault();
+ * for (Ping ping : pings) {
+ *     ping.setEchoDemux(demux);
+ *     executor.execute(ping);
+ * }
+ * </pre>
+ * A channel's socket is closed and its reader exits once nothing has been registered on it
+ * for an idle poll.  Thread safe.
+ */
+public class EchoDemux {
+    private static final String TAG = EchoDemux.class.getSimpleName();
+    private static final int ECHO_PORT = 7;
+    private static final int ICMP_HEADER_SIZE = 8;
+    //POLLIN isn't populated correctly in test stubs
+    protected static final short POLLIN = (short)(OsConstants.POLLIN==0?1:OsConstants.POLLIN);
+    private static final int MSG_DONTWAIT = 0x40;
+    private static final int IDLE_POLL_MS = 1000;
+
+    private static EchoDemux sDefault;
+
+    private final EchoStamp mStamp = new EchoStamp();
+    private final IntMap<Registration> mRoutes = new IntMap<>();
+    private final AtomicInteger mNextToken = new AtomicInteger();
+    private final Map<ChannelKey, Channel> mChannels = new HashMap<>();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    public static synchronized EchoDemux getDefault() {
+        if (sDefault == null) {
+            sDefault = new EchoDemux();
+        }
+        return sDefault;
+    }
+
+    /**
+     * @return replies that didn't verify or whose Ping was gone.  Late replies are counted by
+     * {@link Ping#getRejectedCount()} instead.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return open sockets, one per (IP version, Network, traffic class) in use
+     */
+    public synchronized int getChannelCount() {
+        return mChannels.size();
+    }
+
+    /**
+     * @return Pings currently registered
+     */
+    public int getRegistrationCount() {
+        return mRoutes.size();
+    }
+
+    EchoStamp getStamp() {
+        return mStamp;
+    }
+
+    /**
+     * Join the channel for inet, network and trafficClass, opening it if needed.  Close the registration when done.
+     * @param inet AF_INET or AF_INET6
+     * @param trafficClass 0-255 or {@link Ping#TRAFFIC_CLASS_NONE}
+     * @param tosLevel setsockopt() level for trafficClass, IPPROTO_IP or IPPROTO_IPV6 to match inet
+     * @param tosOption setsockopt() option for trafficClass, IP_TOS or IPV6_TCLASS to match inet
+     */
+    Registration register(final int inet, final Network network, final int trafficClass,
+                          final int tosLevel, final int tosOption) throws ErrnoException, IOException {
+        final ChannelKey key = new ChannelKey(inet, network, trafficClass);
+        final Channel channel;
+        synchronized (this) {
+            Channel existing = mChannels.get(key);
+            if (existing == null) {
+                existing = open(key, tosLevel, tosOption);
+                mChannels.put(key, existing);
+            }
+            channel = existing;
+            channel.mRegistrations++;
+        }
+        int token;
+        final Registration registration = new Registration(channel);
+        do {
+            token = mNextToken.incrementAndGet();
+        } while (token == IntMap.EMPTY || token == IntMap.REMOVED || !mRoutes.put(token, registration));
+        registration.mToken = token;
+        return registration;
+    }
+
+    private Channel open(final ChannelKey key, final int tosLevel, final int tosOption) throws ErrnoException, IOException {
+        final int proto = key.mInet == OsConstants.AF_INET6 ? OsConstants.IPPROTO_ICMPV6 : OsConstants.IPPROTO_ICMP;
+        final FileDescriptor fd = socket(key.mInet, proto);
+        if (!fd.valid()) {
+            throw new IOException("Invalid FD " + fd.toString());
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && key.mNetwork != null) {
+                key.mNetwork.bindSocket(fd);
+            }
+            if (key.mTrafficClass != Ping.TRAFFIC_CLASS_NONE) {
+                setsockoptInt(fd, tosLevel, tosOption, key.mTrafficClass);
+            }
+        } catch (ErrnoException | IOException e) {
+            close(fd);
+            throw e;
+        }
+        final Channel channel = new Channel(key, fd);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(channel);
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+        return channel;
+    }
+
+    private void read(final Channel channel) {
+        final StructPollfd structPollfd = new StructPollfd();
+        structPollfd.fd = channel.mFd;
+        structPollfd.events = POLLIN;
+        final StructPollfd[] structPollfds = {structPollfd};
+        final byte[] buffer = new byte[ICMP_HEADER_SIZE + EchoPacketBuilder.MAX_PAYLOAD];
+        try {
+            while (true) {
+                final int rc;
+                try {
+                    rc = poll(structPollfds, IDLE_POLL_MS);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EINTR) {
+                        continue;
+                    }
+                    throw e;
+                }
+                if (rc < 0) {
+                    Log.e(TAG, "poll() failed");
+                    break;
+                }
+                if (structPollfd.revents == POLLIN) {
+                    structPollfd.revents = 0;
+                    final int length = recvfrom(channel.mFd, buffer);
+                    route(buffer, length, nanoTime());
+                } else {
+                    synchronized (this) {
+                        if (channel.mRegistrations == 0) {
+                            retire(channel);
+                            break;
+                        }
+                    }
+                }
+            }
+        } catch (ErrnoException | SocketException e) {
+            Log.e(TAG, "Reader failed", e);
+        } finally {
+            final boolean idle;
+            synchronized (this) {
+                retire(channel);
+                idle = channel.mRegistrations == 0;
+            }
+            // Otherwise the last registration closes it
+            if (idle) {
+                closeSocket(channel);
+            }
+        }
+    }
+
+    /**
+     * Later registrations open a new channel.  Hold the lock.
+     */
+    private void retire(final Channel channel) {
+        if (mChannels.get(channel.mKey) == channel) {
+            mChannels.remove(channel.mKey);
+        }
+        channel.mClosed = true;
+    }
+
+    /**
+     * Only once the channel is retired and nobody is registered, so no send() can be using the fd
+     */
+    private void closeSocket(final Channel channel) {
+        try {
+            close(channel.mFd);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "close() failed", e);
+        }
+    }
+
+    private void route(final byte[] buffer, final int length, final long nowNanos) {
+        if (length > ICMP_HEADER_SIZE && mStamp.verify(buffer, ICMP_HEADER_SIZE, length - ICMP_HEADER_SIZE)) {
+            final Registration registration = mRoutes.get(EchoStamp.getTarget(buffer, ICMP_HEADER_SIZE));
+            if (registration != null) {
+                // A stale reply is counted by the registration
+                registration.deliver(EchoStamp.getSendNanos(buffer, ICMP_HEADER_SIZE), nowNanos);
+                return;
+            }
+        }
+        mDropped.incrementAndGet();
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected FileDescriptor socket(final int inet, final int proto) throws ErrnoException {
+        return Os.socket(inet, OsConstants.SOCK_DGRAM, proto);
+    }
+
+    protected void setsockoptInt(final FileDescriptor fd, final int level, final int option, final int value) throws ErrnoException {
+        Ping.SetsockoptInt.set(fd, level, option, value);
+    }
+
+    protected int sendto(final FileDescriptor fd, final ByteBuffer byteBuffer, final InetAddress dest) throws ErrnoException, SocketException {
+        return Os.sendto(fd, byteBuffer, 0, dest, ECHO_PORT);
+    }
+
+    protected int poll(final StructPollfd[] structPollfds, final int timeoutMs) throws ErrnoException {
+        return Os.poll(structPollfds, timeoutMs);
+    }
+
+    protected int recvfrom(final FileDescriptor fd, final byte[] buffer) throws ErrnoException, SocketException {
+        return Os.recvfrom(fd, buffer, 0, buffer.length, MSG_DONTWAIT, null);
+    }
+
+    protected void close(final FileDescriptor fd) throws ErrnoException {
+        Os.close(fd);
+    }
+
+    private static final class ChannelKey {
+        final int mInet;
+        final Network mNetwork;
+        final int mTrafficClass;
+
+        ChannelKey(final int inet, final Network network, final int trafficClass) {
+            mInet = inet;
+            mNetwork = network;
+            mTrafficClass = trafficClass;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof ChannelKey)) {
+                return false;
+            }
+            final ChannelKey other = (ChannelKey)o;
+            return mInet == other.mInet && mTrafficClass == other.mTrafficClass
+                    && (mNetwork == null ? other.mNetwork == null : mNetwork.equals(other.mNetwork));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mInet + mTrafficClass) + (mNetwork == null ? 0 : mNetwork.hashCode());
+        }
+    }
+
+    private static final class Channel {
+        final ChannelKey mKey;
+        final FileDescriptor mFd;
+        // Guarded by the EchoDemux
+        int mRegistrations;
+        volatile boolean mClosed;
+
+        Channel(final ChannelKey key, final FileDescriptor fd) {
+            mKey = key;
+            mFd = fd;
+        }
+    }
+
+    /**
+     * One Ping's slot on a channel: one probe outstanding at a time, its RTT is handed over
+     * by the reader thread
+     */
+    final class Registration {
+        private static final long NONE = Long.MIN_VALUE;
+
+        private final Channel mChannel;
+        private final Thread mOwner = Thread.currentThread();
+        private final AtomicLong mRttNanos = new AtomicLong(NONE);
+        private volatile long mExpectedNanos = NONE;
+        private int mToken;
+        // Only written by the reader thread
+        private volatile int mRejected;
+
+        Registration(final Channel channel) {
+            mChannel = channel;
+        }
+
+        int getToken() {
+            return mToken;
+        }
+
+        /**
+         * @return replies that weren't for the outstanding probe, e.g. late ones
+         */
+        int getRejectedCount() {
+            return mRejected;
+        }
+
+        /**
+         * Send a probe stamped with sendNanos and this registration's token
+         */
+        int send(final ByteBuffer byteBuffer, final InetAddress dest, final long sendNanos) throws ErrnoException, IOException {
+            if (mChannel.mClosed) {
+                throw new IOException("Channel closed");
+            }
+            mRttNanos.set(NONE);
+            mExpectedNanos = sendNanos;
+            return sendto(mChannel.mFd, byteBuffer, dest);
+        }
+
+        /**
+         * Wait for the reply to the last {@link #send(ByteBuffer, InetAddress, long)}
+         * @return RTT in ns or {@link Ping#TIMED_OUT_MS}
+         */
+        long await(final int timeoutMs) {
+            final long deadline = nanoTime() + timeoutMs * 1000000L;
+            long rttNanos;
+            while ((rttNanos = mRttNanos.get()) == NONE) {
+                final long remaining = deadline - nanoTime();
+                if (remaining <= 0 || mChannel.mClosed) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            mExpectedNanos = NONE;
+            return rttNanos == NONE ? Ping.TIMED_OUT_MS : rttNanos;
+        }
+
+        /**
+         * Reader thread.  Stale replies are counted as rejected.
+         */
+        private void deliver(final long sendNanos, final long nowNanos) {
+            if (sendNanos != mExpectedNanos || !mRttNanos.compareAndSet(NONE, nowNanos - sendNanos)) {
+                mRejected++;
+                return;
+            }
+            LockSupport.unpark(mOwner);
+        }
+
+        void close() {
+            mRoutes.remove(mToken);
+            final boolean last;
+            synchronized (EchoDemux.this) {
+                mChannel.mRegistrations--;
+                last = mChannel.mClosed && mChannel.mRegistrations == 0;
+            }
+            // The reader has already gone, the socket was left open for us
+            if (last) {
+                closeSocket(mChannel);
+            }
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class EchoPacketBuilder {
     private short mSequenceNumber;
     private short mIdentifier = 0xDBB;
     private boolean mAutoIdentifier = true;
+    private EchoStamp mStamp;
+    private int mTarget;
 
     private static AtomicInteger sSequence = new AtomicInteger(0);
 
@@ -45,24 +47,73 @@ public class EchoPacketBuilder {
     }
 
     public ByteBuffer build() {
+        return build(ByteBuffer.allocate(getPacketSize()));
+    }
+
+    /**
+     * Build into an existing buffer, so a probe loop doesn't allocate per packet
+     * @param byteBuffer array backed buffer of at least {@link #getPacketSize()}, it is cleared first
+     * @return byteBuffer, flipped
+     */
+    public ByteBuffer build(final ByteBuffer byteBuffer) {
+        return build(byteBuffer, System.nanoTime());
+    }
+
+    /**
+     * @param sendNanos {@link System#nanoTime()} to stamp into the payload, ignored without a stamp
+     * @see #build(ByteBuffer)
+     */
+    public ByteBuffer build(final ByteBuffer byteBuffer, final long sendNanos) {
         if (mAutoIdentifier) {
             mIdentifier = (short)sSequence.getAndIncrement();
         }
-        final byte buffer[] = new byte[8 + mPayload.length];
-        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
-
+        byteBuffer.clear();
         byteBuffer.put(mType);
         byteBuffer.put(CODE);
         final int checkPos = byteBuffer.position();
-        byteBuffer.position(checkPos + 2);
+        byteBuffer.putShort((short)0);
         byteBuffer.putShort(mIdentifier);
         byteBuffer.putShort(mSequenceNumber);
+        final int payloadPos = byteBuffer.position();
         byteBuffer.put(mPayload);
-        byteBuffer.putShort(checkPos, checksum(buffer, buffer.length));
+        if (mStamp != null) {
+            // The stamp overwrites the start of the payload, padding it if it's too short
+            if (mPayload.length < EchoStamp.SIZE) {
+                byteBuffer.position(payloadPos + EchoStamp.SIZE);
+            }
+            mStamp.stamp(byteBuffer.array(), byteBuffer.arrayOffset() + payloadPos, sendNanos, mTarget);
+        }
+        final int offset = byteBuffer.arrayOffset();
+        byteBuffer.putShort(checkPos, checksum(byteBuffer.array(), offset, offset + byteBuffer.position()));
         byteBuffer.flip();
         return byteBuffer;
     }
 
+    /**
+     * @return header plus payload size
+     */
+    public int getPacketSize() {
+        return 8 + (mStamp == null ? mPayload.length : Math.max(mPayload.length, EchoStamp.SIZE));
+    }
+
+    /**
+     * Stamp every packet's payload so replies can be verified and timed on their own
+     * @param stamp null to send the payload as is
+     * @param target stored in the stamp, see {@link EchoStamp#getTarget(byte[], int)}
+     */
+    public void setStamp(final EchoStamp stamp, final int target) {
+        mStamp = stamp;
+        mTarget = target;
+    }
+
+    public EchoStamp getStamp() {
+        return mStamp;
+    }
+
+    public int getTarget() {
+        return mTarget;
+    }
+
     public void setSequenceNumber(final short sequenceNumber) {
         mSequenceNumber = sequenceNumber;
     }
@@ -83,14 +134,18 @@ public class EchoPacketBuilder {
      * @return
      */
     static short checksum(byte[] data, int end) {
+        return checksum(data, 0, end);
+    }
+
+    static short checksum(byte[] data, int start, int end) {
         int sum = 0;
         // High bytes (even indices)
-        for (int i = 0; i < end; i += 2) {
+        for (int i = start; i < end; i += 2) {
             sum += (data[i] & 0xFF) << 8;
             sum = (sum & 0xFFFF) + (sum >> 16);
         }
         // Low bytes (odd indices)
-        for (int i = 1; i < end; i += 2) {
+        for (int i = start + 1; i < end; i += 2) {
             sum += (data[i] & 0xFF);
             sum = (sum & 0xFFFF) + (sum >> 16);
         }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.security.SecureRandom;
+
+/**
+ * Stamps an echo payload with everything needed to handle its reply: when it was sent
+ * ({@link System#nanoTime()}), which target it was sent to, and a SipHash-2-4 MAC over both.
+ * A caller can then time a reply from the stamp alone, and replies that weren't stamped with our
+ * key are rejected.  {@link Ping} and {@link EchoDemux} don't go that far: they keep one probe in
+ * flight and only accept the reply whose stamped send time is that probe's.
+ *
+ * The ICMP header isn't covered: the kernel rewrites the identifier of datagram ICMP sockets.
+ *
+ * Layout, big endian: send time (8), target (4), MAC (8)
+ */
+public class EchoStamp {
+    public static final int SIZE = 20;
+    private static final int TARGET_OFFSET = 8;
+    private static final int MAC_OFFSET = 12;
+
+    private final long mK0;
+    private final long mK1;
+
+    /**
+     * Random key, replies are only accepted by this instance
+     */
+    public EchoStamp() {
+        final SecureRandom random = new SecureRandom();
+        mK0 = random.nextLong();
+        mK1 = random.nextLong();
+    }
+
+    /**
+     * Fixed 128 bit key, e.g. to verify replies in another process
+     */
+    public EchoStamp(final long k0, final long k1) {
+        mK0 = k0;
+        mK1 = k1;
+    }
+
+    /**
+     * @param data destination, usually the start of the echo payload
+     * @param offset where in data to write {@link #SIZE} bytes
+     * @param sendNanos {@link System#nanoTime()} at send
+     * @param target caller defined, e.g. an index into a list of destinations
+     */
+    public void stamp(final byte[] data, final int offset, final long sendNanos, final int target) {
+        putLong(data, offset, sendNanos);
+        putInt(data, offset + TARGET_OFFSET, target);
+        putLong(data, offset + MAC_OFFSET, mac(sendNanos, target));
+    }
+
+    /**
+     * @param length bytes available from offset, normally the echo reply payload length
+     * @return true if data holds a stamp made with this key
+     */
+    public boolean verify(final byte[] data, final int offset, final int length) {
+        if (length < SIZE || offset < 0 || offset + SIZE > data.length) {
+            return false;
+        }
+        return getLong(data, offset + MAC_OFFSET) == mac(getSendNanos(data, offset), getTarget(data, offset));
+    }
+
+    /**
+     * Only meaningful once {@link #verify(byte[], int, int)} passed
+     */
+    public static long getSendNanos(final byte[] data, final int offset) {
+        return getLong(data, offset);
+    }
+
+    /**
+     * Only meaningful once {@link #verify(byte[], int, int)} passed
+     */
+    public static int getTarget(final byte[] data, final int offset) {
+        return getInt(data, offset + TARGET_OFFSET);
+    }
+
+    /**
+     * SipHash-2-4 of the 12 byte little endian message sendNanos | target
+     */
+    long mac(final long sendNanos, final int target) {
+        long v0 = mK0 ^ 0x736f6d6570736575L;
+        long v1 = mK1 ^ 0x646f72616e646f6dL;
+        long v2 = mK0 ^ 0x6c7967656e657261L;
+        long v3 = mK1 ^ 0x7465646279746573L;
+
+        // One full block
+        v3 ^= sendNanos;
+        for (int i = 0; i < 2; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= sendNanos;
+
+        // Last block: the remaining 4 bytes and the message length
+        final long last = (12L << 56) | (target & 0xffffffffL);
+        v3 ^= last;
+        for (int i = 0; i < 2; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        v0 ^= last;
+
+        v2 ^= 0xff;
+        for (int i = 0; i < 4; i++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static void putLong(final byte[] data, final int offset, final long value) {
+        putInt(data, offset, (int)(value >>> 32));
+        putInt(data, offset + 4, (int)value);
+    }
+
+    private static void putInt(final byte[] data, final int offset, final int value) {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+
+    private static long getLong(final byte[] data, final int offset) {
+        return ((long)getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing int to Object map for hot lookups.  {@link #get(int)} never locks, so a
+ * reader thread can route thousands of packets a second without contending with writers.
+ * Writers are serialized.  The table is replaced, never resized in place, so readers always
+ * probe a consistent table.
+ *
+ * Keys 0 (empty) and -1 (removed) are reserved.
+ */
+final class IntMap<V> {
+    static final int EMPTY = 0;
+    static final int REMOVED = -1;
+
+    private static final class Table {
+        final AtomicIntegerArray mKeys;
+        final AtomicReferenceArray<Object> mValues;
+        final int mMask;
+
+        Table(final int capacity) {
+            mKeys = new AtomicIntegerArray(capacity);
+            mValues = new AtomicReferenceArray<>(capacity);
+            mMask = capacity - 1;
+        }
+    }
+
+    private volatile Table mTable;
+    private int mSize;
+    private int mRemoved;
+
+    IntMap() {
+        mTable = new Table(16);
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(final int key) {
+        final Table table = mTable;
+        for (int i = mix(key) & table.mMask, probes = 0; probes <= table.mMask; i = (i + 1) & table.mMask, probes++) {
+            final int k = table.mKeys.get(i);
+            if (k == key) {
+                return (V)table.mValues.get(i);
+            } else if (k == EMPTY) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the key is already mapped
+     */
+    synchronized boolean put(final int key, final V value) {
+        if (key == EMPTY || key == REMOVED) {
+            throw new IllegalArgumentException("Reserved key: " + key);
+        }
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        if (get(key) != null) {
+            return false;
+        }
+        Table table = mTable;
+        // Keep at least half the slots empty so probes stay short and always terminate
+        if ((mSize + mRemoved + 1) * 2 > table.mMask + 1) {
+            table = rehash(mSize + 1);
+        }
+        for (int i = mix(key) & table.mMask; ; i = (i + 1) & table.mMask) {
+            final int k = table.mKeys.get(i);
+            if (k == EMPTY || k == REMOVED) {
+                if (k == REMOVED) {
+                    mRemoved--;
+                }
+                // Value first, a reader that sees the key must see the value
+                table.mValues.set(i, value);
+                table.mKeys.set(i, key);
+                mSize++;
+                return true;
+            }
+        }
+    }
+
+    synchronized V remove(final int key) {
+        final Table table = mTable;
+        for (int i = mix(key) & table.mMask; ; i = (i + 1) & table.mMask) {
+            final int k = table.mKeys.get(i);
+            if (k == key) {
+                @SuppressWarnings("unchecked")
+                final V value = (V)table.mValues.get(i);
+                table.mKeys.set(i, REMOVED);
+                table.mValues.set(i, null);
+                mSize--;
+                mRemoved++;
+                return value;
+            } else if (k == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    private Table rehash(final int size) {
+        int capacity = 16;
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+        final Table old = mTable;
+        final Table table = new Table(capacity);
+        for (int i = 0; i <= old.mMask; i++) {
+            final int key = old.mKeys.get(i);
+            if (key != EMPTY && key != REMOVED) {
+                int j = mix(key) & table.mMask;
+                while (table.mKeys.get(j) != EMPTY) {
+                    j = (j + 1) & table.mMask;
+                }
+                table.mValues.set(j, old.mValues.get(i));
+                table.mKeys.set(j, key);
+            }
+        }
+        mRemoved = 0;
+        mTable = table;
+        return table;
+    }
+
+    /**
+     * Keys are often sequential, spread them over the table
+     */
+    private static int mix(final int key) {
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
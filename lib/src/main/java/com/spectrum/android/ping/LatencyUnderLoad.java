@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Bufferbloat test: latency on an idle link vs. the same link saturated by a {@link LoadGenerator}.
+ *
+ * Probes run on the calling thread at raised priority.  Results are written to arrays
+ * allocated up front and the Ping reuses its buffers, so the probe path doesn't allocate or
+ * take locks shared with the load threads.
+ * Blocks for roughly (idle + warmup + loaded probes) * interval, don't call it on the UI Thread.
+ */
+public class LatencyUnderLoad {
+    public enum Grade {
+        A_PLUS, A, B, C, D, F
+    }
+
+    private final InetAddress mDest;
+    private final LoadGenerator mLoad;
+    private Network mNetwork;
+
+    private int mIdleProbes = 20;
+    private int mWarmupProbes = 10;
+    private int mLoadedProbes = 100;
+    private int mIntervalMs = 100;
+    private int mTimeoutMs = 1000;
+
+    public LatencyUnderLoad(final InetAddress dest, final LoadGenerator load) {
+        if (load == null) {
+            throw new NullPointerException();
+        }
+        mDest = dest;
+        mLoad = load;
+    }
+
+    public void setNetwork(final Network network) {
+        mNetwork = network;
+    }
+
+    /**
+     * @param idleProbes probes before the load starts
+     * @param warmupProbes probes thrown away while the load ramps up
+     * @param loadedProbes probes under load
+     */
+    public void setProbes(final int idleProbes, final int warmupProbes, final int loadedProbes) {
+        if (idleProbes <= 0 || warmupProbes < 0 || loadedProbes <= 0) {
+            throw new IllegalArgumentException("Invalid probe counts");
+        }
+        mIdleProbes = idleProbes;
+        mWarmupProbes = warmupProbes;
+        mLoadedProbes = loadedProbes;
+    }
+
+    public void setIntervalMs(final int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public void setTimeoutMs(final int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Run the test
+     * @throws IOException if the load couldn't start or the ping failed
+     */
+    public Result measure() throws IOException {
+        final Recorder idle = new Recorder(mIdleProbes);
+        final Recorder loaded = new Recorder(mWarmupProbes + mLoadedProbes);
+        final Thread thread = Thread.currentThread();
+        final int priority = thread.getPriority();
+        thread.setPriority(Thread.MAX_PRIORITY);
+        try {
+            probe(idle);
+            mLoad.start();
+            try {
+                probe(loaded);
+            } finally {
+                mLoad.stop();
+            }
+        } finally {
+            thread.setPriority(priority);
+        }
+        return new Result(idle.mSamples, Arrays.copyOfRange(loaded.mSamples, mWarmupProbes, loaded.mSamples.length),
+                mLoad.getBytesSent(), mLoad.getBytesReceived());
+    }
+
+    private void probe(final Recorder recorder) throws IOException {
+        final Ping ping = createPing(mDest, recorder);
+        ping.setCount(recorder.mSamples.length);
+        ping.setDelayMs(mIntervalMs);
+        ping.setTimeoutMs(mTimeoutMs);
+        ping.setNetwork(mNetwork);
+        ping.run();
+        if (recorder.mException != null) {
+            throw new IOException("Ping failed", recorder.mException);
+        }
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected Ping createPing(final InetAddress dest, final Ping.PingListener listener) {
+        return new Ping(dest, listener);
+    }
+
+    private static class Recorder implements Ping.PingListener {
+        final long[] mSamples;
+        Exception mException;
+
+        Recorder(final int count) {
+            mSamples = new long[count];
+            Arrays.fill(mSamples, Ping.TIMED_OUT_MS);
+        }
+
+        @Override
+        public void onPing(final long timeMs, final int index) {
+            if (index < mSamples.length) {
+                mSamples[index] = timeMs;
+            }
+        }
+
+        @Override
+        public void onPingException(final Exception e, final int index) {
+            mException = e;
+        }
+    }
+
+    public static class Result {
+        private final long mIdleMedianMs;
+        private final long mIdleP90Ms;
+        private final long mLoadedMedianMs;
+        private final long mLoadedP90Ms;
+        private final float mIdleLoss;
+        private final float mLoadedLoss;
+        private final long mBytesSent;
+        private final long mBytesReceived;
+
+        Result(final long[] idle, final long[] loaded, final long bytesSent, final long bytesReceived) {
+            final long[] idleSorted = RttStats.sortReplies(idle);
+            final long[] loadedSorted = RttStats.sortReplies(loaded);
+            mIdleMedianMs = RttStats.percentile(idleSorted, 50);
+            mIdleP90Ms = RttStats.percentile(idleSorted, 90);
+            mLoadedMedianMs = RttStats.percentile(loadedSorted, 50);
+            mLoadedP90Ms = RttStats.percentile(loadedSorted, 90);
+            mIdleLoss = 1f - idleSorted.length / (float)idle.length;
+            mLoadedLoss = 1f - loadedSorted.length / (float)loaded.length;
+            mBytesSent = bytesSent;
+            mBytesReceived = bytesReceived;
+        }
+
+        /**
+         * @return median RTT on the idle link or {@link Ping#TIMED_OUT_MS} if nothing came back
+         */
+        public long getIdleMedianMs() {
+            return mIdleMedianMs;
+        }
+
+        public long getIdleP90Ms() {
+            return mIdleP90Ms;
+        }
+
+        /**
+         * @return median RTT under load or {@link Ping#TIMED_OUT_MS} if nothing came back
+         */
+        public long getLoadedMedianMs() {
+            return mLoadedMedianMs;
+        }
+
+        public long getLoadedP90Ms() {
+            return mLoadedP90Ms;
+        }
+
+        /**
+         * @return latency added by the load, median to median
+         */
+        public long getDeltaMs() {
+            if (mIdleMedianMs == Ping.TIMED_OUT_MS || mLoadedMedianMs == Ping.TIMED_OUT_MS) {
+                return Ping.TIMED_OUT_MS;
+            }
+            return Math.max(0, mLoadedMedianMs - mIdleMedianMs);
+        }
+
+        public float getIdleLoss() {
+            return mIdleLoss;
+        }
+
+        public float getLoadedLoss() {
+            return mLoadedLoss;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        public Grade getGrade() {
+            final long deltaMs = getDeltaMs();
+            if (deltaMs == Ping.TIMED_OUT_MS || mLoadedLoss >= 0.5f) {
+                return Grade.F;
+            } else if (deltaMs <= 5) {
+                return Grade.A_PLUS;
+            } else if (deltaMs <= 30) {
+                return Grade.A;
+            } else if (deltaMs <= 60) {
+                return Grade.B;
+            } else if (deltaMs <= 200) {
+                return Grade.C;
+            } else if (deltaMs <= 400) {
+                return Grade.D;
+            }
+            return Grade.F;
+        }
+
+        @Override
+        public String toString() {
+            return "idle " + mIdleMedianMs + "ms loaded " + mLoadedMedianMs + "ms (+" + getDeltaMs() + "ms) grade " + getGrade();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.io.IOException;
+
+/**
+ * Saturates a link while {@link LatencyUnderLoad} measures latency
+ */
+public interface LoadGenerator {
+    /**
+     * Start generating traffic in the background and return
+     */
+    void start() throws IOException;
+
+    /**
+     * Stop all traffic, blocking until it has stopped
+     */
+    void stop();
+
+    /**
+     * @return bytes sent since the last {@link #start()}
+     */
+    long getBytesSent();
+
+    long getBytesReceived();
+}
@@ -31,6 +31,7 @@ import java.lang.reflect.Method;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class Ping implements Runnable {
@@ -38,20 +39,39 @@ public class Ping implements Runnable {
     public static final long TIMED_OUT_MS = -1;
     private static final String TAG = Ping.class.getSimpleName();
 
-    private static final int IPTOS_LOWDELAY = 0x10;
+    /**
+     * Default traffic class, "minimize delay" in the legacy TOS byte
+     */
+    public static final int IPTOS_LOWDELAY = 0x10;
+    /**
+     * Pass to {@link #setTrafficClass(int)} to leave the socket's traffic class alone
+     */
+    public static final int TRAFFIC_CLASS_NONE = -1;
 
     private static final int ECHO_PORT = 7;
     //POLLIN isn't populated correctly in test stubs
     protected static final short POLLIN = (short)(OsConstants.POLLIN==0?1:OsConstants.POLLIN);
     private static final int MSG_DONTWAIT = 0x40;
-    private final InetAddress mDest;
+    private static final int ICMP_HEADER_SIZE = 8;
+    private static final long NANOS_PER_MS = 1000000L;
+    private final String mHost;
+    private final int mFamily;
+    private InetAddress mDest;
     private final PingListener mListener;
 
     private int mTimeoutMs = 4000;
     private int mDelayMs = 1000;
     private int mCount = DEFAULT_COUNT;
     private EchoPacketBuilder mEchoPacketBuilder;
+    private boolean mCustomEchoPacketBuilder;
     private Network mNetwork;
+    private Resolver mResolver;
+    private WakeScheduler mWakeScheduler;
+    private int mTrafficClass = IPTOS_LOWDELAY;
+    private EchoStamp mEchoStamp;
+    private int mTarget;
+    private int mRejectedCount;
+    private EchoDemux mEchoDemux;
 
     public interface PingListener {
         /**
@@ -69,19 +89,49 @@ public class Ping implements Runnable {
         void onPingException(Exception e, int count);
     }
 
+    /**
+     * For callers that need better than millisecond resolution, e.g. {@link SizeSweep}.
+     * Gets {@link #onPingNanos(long, int)} instead of {@link PingListener#onPing(long, int)}.
+     */
+    public interface NanosPingListener extends PingListener {
+        /**
+         * @param timeNanos time in ns for ping to return or {@link Ping#TIMED_OUT_MS} in case of timeout
+         * @param index index of the current ping
+         */
+        void onPingNanos(long timeNanos, int index);
+    }
+
     /**
      *
      * @param dest Can be of type <code>Inet6Address</code> or <code>Inet4Address</code>
      * @param listener
      */
     public Ping(final InetAddress dest, final PingListener listener) {
+        mHost = null;
+        mFamily = Resolver.FAMILY_ANY;
         mDest = dest;
         if (listener == null) {
             throw new NullPointerException();
         }
         mListener = listener;
-        final byte type = dest instanceof Inet6Address ? EchoPacketBuilder.TYPE_ICMP_V6 : EchoPacketBuilder.TYPE_ICMP_V4;
-        setEchoPacketBuilder(new EchoPacketBuilder(type, "abcdefghijklmnopqrstuvwabcdefghi".getBytes()));
+        mEchoPacketBuilder = newEchoPacketBuilder(dest);
+    }
+
+    /**
+     * The host is resolved when the ping runs, through {@link Resolver#getDefault()} unless
+     * {@link #setResolver(Resolver)} is called.  Resolution failures go to
+     * {@link PingListener#onPingException(Exception, int)}.
+     * @param host host name or IP literal
+     * @param family one of the Resolver.FAMILY_ constants
+     * @param listener
+     */
+    public Ping(final String host, final int family, final PingListener listener) {
+        if (host == null || listener == null) {
+            throw new NullPointerException();
+        }
+        mHost = host;
+        mFamily = family;
+        mListener = listener;
     }
 
     public void setTimeoutMs(final int timeoutMs) {
@@ -119,8 +169,94 @@ public class Ping implements Runnable {
         mNetwork = network;
     }
 
+    public Resolver getResolver() {
+        return mResolver;
+    }
+
+    public void setResolver(final Resolver resolver) {
+        mResolver = resolver;
+    }
+
+    public WakeScheduler getWakeScheduler() {
+        return mWakeScheduler;
+    }
+
+    /**
+     * Share wake ups with other Pings instead of sleeping independently between probes
+     * @param wakeScheduler null to sleep exactly {@link #getDelayMs()}
+     */
+    public void setWakeScheduler(final WakeScheduler wakeScheduler) {
+        mWakeScheduler = wakeScheduler;
+    }
+
+    public int getTrafficClass() {
+        return mTrafficClass;
+    }
+
+    /**
+     * Set the IPv4 TOS byte or IPv6 Traffic Class of the probes, e.g. <code>46 &lt;&lt; 2</code> for DSCP EF
+     * @param trafficClass 0-255 or {@link #TRAFFIC_CLASS_NONE}
+     */
+    public void setTrafficClass(final int trafficClass) {
+        if (trafficClass < TRAFFIC_CLASS_NONE || trafficClass > 0xff) {
+            throw new IllegalArgumentException("Invalid traffic class: " + trafficClass);
+        }
+        mTrafficClass = trafficClass;
+    }
+
+    /**
+     * @return the address being pinged, null if a host name hasn't been resolved yet
+     */
+    public InetAddress getDestination() {
+        return mDest;
+    }
+
+    /**
+     * Stamp each probe's payload and only accept replies carrying the stamp of the current
+     * probe.  Late replies to earlier probes and replies not made with the stamp's key are
+     * dropped instead of being counted.  Probes are still sent one at a time, the stamp only
+     * matches a reply to the probe in flight.
+     * @param echoStamp null to accept any reply
+     * @param target stored in the stamp, see {@link EchoStamp#getTarget(byte[], int)}
+     */
+    public void setEchoStamp(final EchoStamp echoStamp, final int target) {
+        mEchoStamp = echoStamp;
+        mTarget = target;
+    }
+
+    public EchoStamp getEchoStamp() {
+        return mEchoStamp;
+    }
+
+    /**
+     * @return replies dropped by {@link #setEchoStamp(EchoStamp, int)} verification during the last run
+     */
+    public int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public EchoDemux getEchoDemux() {
+        return mEchoDemux;
+    }
+
+    /**
+     * Send and receive through a shared socket instead of opening one per run.
+     * Probes are always stamped, with the demux's key.  Pings with different traffic classes
+     * get different sockets.
+     * @param echoDemux null for a socket of our own
+     */
+    public void setEchoDemux(final EchoDemux echoDemux) {
+        mEchoDemux = echoDemux;
+    }
+
     public void setEchoPacketBuilder(final EchoPacketBuilder echoPacketBuilder) {
         mEchoPacketBuilder = echoPacketBuilder;
+        mCustomEchoPacketBuilder = true;
+    }
+
+    private static EchoPacketBuilder newEchoPacketBuilder(final InetAddress dest) {
+        final byte type = dest instanceof Inet6Address ? EchoPacketBuilder.TYPE_ICMP_V6 : EchoPacketBuilder.TYPE_ICMP_V4;
+        return new EchoPacketBuilder(type, "abcdefghijklmnopqrstuvwabcdefghi".getBytes());
     }
 
     /**
@@ -131,13 +267,40 @@ public class Ping implements Runnable {
      */
     @Override
     public void run() {
-        final int inet, proto;
+        mRejectedCount = 0;
+        if (mHost != null) {
+            try {
+                final InetAddress dest = resolve(mHost, mFamily);
+                // Swap the default packet builder if the host moved to the other IP version
+                if (mEchoPacketBuilder == null ||
+                        (!mCustomEchoPacketBuilder && (dest instanceof Inet6Address) != (mDest instanceof Inet6Address))) {
+                    mEchoPacketBuilder = newEchoPacketBuilder(dest);
+                }
+                mDest = dest;
+            } catch (UnknownHostException e) {
+                mListener.onPingException(e, 0);
+                return;
+            }
+        }
+        final EchoDemux echoDemux = mEchoDemux;
+        if (echoDemux == null && (mEchoStamp != null || !mCustomEchoPacketBuilder)) {
+            mEchoPacketBuilder.setStamp(mEchoStamp, mTarget);
+        }
+        final int inet, proto, tosLevel, tosOption;
         if (mDest instanceof Inet6Address) {
             inet = OsConstants.AF_INET6;
             proto = OsConstants.IPPROTO_ICMPV6;
+            tosLevel = OsConstants.IPPROTO_IPV6;
+            tosOption = OsConstants.IPV6_TCLASS;
         } else {
             inet = OsConstants.AF_INET;
             proto = OsConstants.IPPROTO_ICMP;
+            tosLevel = OsConstants.IPPROTO_IP;
+            tosOption = OsConstants.IP_TOS;
+        }
+        if (echoDemux != null) {
+            runDemux(echoDemux, inet, tosLevel, tosOption);
+            return;
         }
         try {
             final FileDescriptor fd = socket(inet, proto);
@@ -146,41 +309,75 @@ public class Ping implements Runnable {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mNetwork != null) {
                         mNetwork.bindSocket(fd);
                     }
-                    setLowDelay(fd);
+                    if (mTrafficClass != TRAFFIC_CLASS_NONE) {
+                        setsockoptInt(fd, tosLevel, tosOption, mTrafficClass);
+                    }
 
                     final StructPollfd structPollfd = new StructPollfd();
                     structPollfd.fd = fd;
                     structPollfd.events = POLLIN;
                     final StructPollfd[] structPollfds = {structPollfd};
+                    // Buffers are reused across probes, so the loop doesn't allocate unless the packet grows
+                    ByteBuffer byteBuffer = null;
+                    byte[] buffer = null;
+                    final EchoStamp stamp = mEchoPacketBuilder.getStamp();
                     for (int i = 0; i < mCount; i++) {
-                        final ByteBuffer byteBuffer = mEchoPacketBuilder.build();
-                        final byte[] buffer = new byte[byteBuffer.limit()];
+                        final int packetSize = mEchoPacketBuilder.getPacketSize();
+                        if (byteBuffer == null || byteBuffer.capacity() < packetSize) {
+                            byteBuffer = ByteBuffer.allocate(packetSize);
+                            buffer = new byte[packetSize];
+                        }
 
                         try {
                             // Note: it appears that the OS updates the Checksum, Identifier, and Sequence number.  The payload appears to be untouched.
                             // These changes are not reflected in the buffer, but in the returning packet.
-                            final long start = System.currentTimeMillis();
+                            final long sendNanos = nanoTime();
+                            mEchoPacketBuilder.build(byteBuffer, sendNanos);
+                            final long start = currentTimeMillis();
                             int rc = sendto(fd, byteBuffer);
-                            if (rc >= 0) {
-                                rc = poll(structPollfds);
-                                final long time = calcLatency(start, System.currentTimeMillis());
-                                if (rc >= 0) {
-                                    if (structPollfd.revents == POLLIN) {
-                                        structPollfd.revents = 0;
-                                        rc = recvfrom(fd, buffer);
-                                        if (rc < 0) {
-                                            Log.d(TAG, "recvfrom() return failure: " + rc);
-                                        }
-                                        mListener.onPing(time, i);
-                                    } else {
-                                        mListener.onPing(TIMED_OUT_MS, i);
-                                    }
-                                } else {
-                                    mListener.onPingException(new IOException("poll() failed"), i);
+                            if (rc < 0) {
+                                mListener.onPingException(new IOException("sendto() failed"), i);
+                                break;
+                            }
+                            int timeoutMs = mTimeoutMs;
+                            boolean pollFailed = false;
+                            while (true) {
+                                rc = poll(structPollfds, timeoutMs);
+                                final long end = currentTimeMillis();
+                                final long endNanos = nanoTime();
+                                if (rc < 0) {
+                                    pollFailed = true;
                                     break;
                                 }
-                            } else {
-                                mListener.onPingException(new IOException("sendto() failed"), i);
+                                if (structPollfd.revents != POLLIN) {
+                                    onPing(TIMED_OUT_MS, TIMED_OUT_MS, i);
+                                    break;
+                                }
+                                structPollfd.revents = 0;
+                                rc = recvfrom(fd, buffer);
+                                if (rc < 0) {
+                                    Log.d(TAG, "recvfrom() return failure: " + rc);
+                                }
+                                if (stamp == null) {
+                                    onPing(calcLatency(start, end), endNanos - sendNanos, i);
+                                    break;
+                                }
+                                // Only the reply to this probe counts, stale or forged replies are dropped
+                                // and the rest of the timeout is spent waiting for the real one
+                                if (rc > ICMP_HEADER_SIZE && stamp.verify(buffer, ICMP_HEADER_SIZE, rc - ICMP_HEADER_SIZE)
+                                        && EchoStamp.getSendNanos(buffer, ICMP_HEADER_SIZE) == sendNanos) {
+                                    onPing(calcLatency(sendNanos / NANOS_PER_MS, endNanos / NANOS_PER_MS), endNanos - sendNanos, i);
+                                    break;
+                                }
+                                mRejectedCount++;
+                                timeoutMs = (int)(mTimeoutMs - (end - start));
+                                if (timeoutMs <= 0) {
+                                    onPing(TIMED_OUT_MS, TIMED_OUT_MS, i);
+                                    break;
+                                }
+                            }
+                            if (pollFailed) {
+                                mListener.onPingException(new IOException("poll() failed"), i);
                                 break;
                             }
                         } catch (ErrnoException e) {
@@ -200,6 +397,51 @@ public class Ping implements Runnable {
         }
     }
 
+    private void runDemux(final EchoDemux echoDemux, final int inet, final int tosLevel, final int tosOption) {
+        final EchoDemux.Registration registration;
+        try {
+            registration = echoDemux.register(inet, mNetwork, mTrafficClass, tosLevel, tosOption);
+        } catch (ErrnoException | IOException e) {
+            mListener.onPingException(e, 0);
+            return;
+        }
+        final EchoStamp stamp = mEchoPacketBuilder.getStamp();
+        final int target = mEchoPacketBuilder.getTarget();
+        try {
+            mEchoPacketBuilder.setStamp(echoDemux.getStamp(), registration.getToken());
+            final ByteBuffer byteBuffer = ByteBuffer.allocate(mEchoPacketBuilder.getPacketSize());
+            for (int i = 0; i < mCount; i++) {
+                try {
+                    final long sendNanos = nanoTime();
+                    mEchoPacketBuilder.build(byteBuffer, sendNanos);
+                    if (registration.send(byteBuffer, mDest, sendNanos) < 0) {
+                        mListener.onPingException(new IOException("sendto() failed"), i);
+                        break;
+                    }
+                } catch (ErrnoException | IOException e) {
+                    mListener.onPingException(e, i);
+                    break;
+                }
+                final long timeNanos = registration.await(mTimeoutMs);
+                onPing(timeNanos == TIMED_OUT_MS ? TIMED_OUT_MS : timeNanos / NANOS_PER_MS, timeNanos, i);
+                sleep();
+            }
+        } finally {
+            mRejectedCount += registration.getRejectedCount();
+            registration.close();
+            // Don't leave the demux's stamp on a builder that may be used without it
+            mEchoPacketBuilder.setStamp(stamp, target);
+        }
+    }
+
+    private void onPing(final long timeMs, final long timeNanos, final int index) {
+        if (mListener instanceof NanosPingListener) {
+            ((NanosPingListener)mListener).onPingNanos(timeNanos, index);
+        } else {
+            mListener.onPing(timeMs, index);
+        }
+    }
+
     /*
      * Testability methods
      */
@@ -207,30 +449,52 @@ public class Ping implements Runnable {
     protected long calcLatency(final long startTimestamp, final long endTimestamp) {
         return endTimestamp - startTimestamp;
     }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected InetAddress resolve(final String host, final int family) throws UnknownHostException {
+        final Resolver resolver = mResolver == null ? Resolver.getDefault() : mResolver;
+        return resolver.resolve(host, family, mNetwork);
+    }
+
     protected FileDescriptor socket(final int inet, final int proto) throws ErrnoException {
         return Os.socket(inet, OsConstants.SOCK_DGRAM, proto);
     }
 
+    /**
+     * @deprecated no longer called by {@link #run()}, which applies {@link #setTrafficClass(int)}
+     * through {@link #setsockoptInt(FileDescriptor, int, int, int)}.  Override that instead.
+     */
+    @Deprecated
     protected void setLowDelay(final FileDescriptor fd) throws ErrnoException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Os.setsockoptInt(fd, OsConstants.IPPROTO_IP, OsConstants.IP_TOS, IPTOS_LOWDELAY);
-        } else {
-            try {
-                final Method method = Os.class.getMethod("setsockoptInt", FileDescriptor.class, int.class, int.class, int.class);
-                method.invoke(null, fd, OsConstants.IPPROTO_IP, OsConstants.IP_TOS, IPTOS_LOWDELAY);
+        setsockoptInt(fd, OsConstants.IPPROTO_IP, OsConstants.IP_TOS, IPTOS_LOWDELAY);
+    }
 
-            } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
-                Log.e(TAG, "Could not setsockOptInt()", e);
-            }
-        }
+    protected void setsockoptInt(final FileDescriptor fd, final int level, final int option, final int value) throws ErrnoException {
+        SetsockoptInt.set(fd, level, option, value);
     }
 
     protected int sendto(final FileDescriptor fd, final ByteBuffer byteBuffer) throws ErrnoException, SocketException {
         return Os.sendto(fd, byteBuffer, 0, mDest, ECHO_PORT);
     }
 
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected int poll(final StructPollfd[] structPollfds, final int timeoutMs) throws ErrnoException {
+        return Os.poll(structPollfds, timeoutMs);
+    }
+
+    /**
+     * @deprecated no longer called by {@link #run()}, which waits out the rest of the timeout after
+     * a rejected reply through {@link #poll(StructPollfd[], int)}.  Override that instead.
+     */
+    @Deprecated
     protected int poll(final StructPollfd[] structPollfds) throws ErrnoException {
-        return Os.poll(structPollfds, mTimeoutMs);
+        return poll(structPollfds, mTimeoutMs);
     }
 
     protected int recvfrom(final FileDescriptor fd, final byte[] buffer) throws ErrnoException, SocketException {
@@ -243,9 +507,51 @@ public class Ping implements Runnable {
 
     protected void sleep() {
         try {
-            Thread.sleep(mDelayMs);
+            final WakeScheduler wakeScheduler = mWakeScheduler;
+            if (wakeScheduler == null) {
+                Thread.sleep(mDelayMs);
+            } else {
+                wakeScheduler.await(mDelayMs);
+            }
         } catch (InterruptedException e) {
             //Intentionally blank
         }
     }
+
+    /**
+     * Os.setsockoptInt() is hidden before O, look it up once rather than on every run
+     */
+    static class SetsockoptInt {
+        static final Method METHOD = find();
+
+        private static Method find() {
+            try {
+                return Os.class.getMethod("setsockoptInt", FileDescriptor.class, int.class, int.class, int.class);
+            } catch (NoSuchMethodException e) {
+                Log.e(TAG, "Could not find setsockoptInt()", e);
+                return null;
+            }
+        }
+
+        static void set(final FileDescriptor fd, final int level, final int option, final int value) throws ErrnoException {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                Os.setsockoptInt(fd, level, option, value);
+            } else {
+                final Method method = METHOD;
+                if (method == null) {
+                    return;
+                }
+                try {
+                    method.invoke(null, fd, level, option, value);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof ErrnoException) {
+                        throw (ErrnoException)e.getCause();
+                    }
+                    Log.e(TAG, "Could not setsockoptInt()", e);
+                } catch (IllegalAccessException e) {
+                    Log.e(TAG, "Could not setsockoptInt()", e);
+                }
+            }
+        }
+    }
 }
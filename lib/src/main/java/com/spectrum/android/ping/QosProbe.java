@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Probes one destination over several sockets at once, each marked with a different
+ * DSCP/TOS (IPv4) or Traffic Class (IPv6), to see whether the path treats them differently.
+ *
+ * Each class gets its own Ping on its own thread.  Start times are staggered by
+ * interval / classes so the probes interleave on the wire instead of queueing behind each other.
+ * Blocks for roughly count * interval, don't call it on the UI Thread.
+ */
+public class QosProbe {
+    public static final int DSCP_BE = 0;
+    public static final int DSCP_CS1 = 8;
+    public static final int DSCP_AF21 = 18;
+    public static final int DSCP_AF41 = 34;
+    public static final int DSCP_EF = 46;
+
+    private final InetAddress mDest;
+    private final int[] mTrafficClasses;
+    private Network mNetwork;
+
+    private int mCount = 20;
+    private int mIntervalMs = 200;
+    private int mTimeoutMs = 1000;
+
+    /**
+     * @param dest destination
+     * @param trafficClasses TOS bytes to compare, see {@link #tos(int)}.  The first one is the baseline.
+     */
+    public QosProbe(final InetAddress dest, final int... trafficClasses) {
+        if (trafficClasses.length == 0) {
+            throw new IllegalArgumentException("No traffic classes");
+        }
+        for (final int trafficClass : trafficClasses) {
+            if (trafficClass < 0 || trafficClass > 0xff) {
+                throw new IllegalArgumentException("Invalid traffic class: " + trafficClass);
+            }
+        }
+        mDest = dest;
+        mTrafficClasses = trafficClasses.clone();
+    }
+
+    /**
+     * @param dscp 6 bit Differentiated Services Code Point
+     * @return the TOS/Traffic Class byte carrying it, ECN bits clear
+     */
+    public static int tos(final int dscp) {
+        if (dscp < 0 || dscp > 63) {
+            throw new IllegalArgumentException("Invalid DSCP: " + dscp);
+        }
+        return dscp << 2;
+    }
+
+    public void setNetwork(final Network network) {
+        mNetwork = network;
+    }
+
+    /**
+     * @param count probes per traffic class
+     */
+    public void setCount(final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive: " + count);
+        }
+        mCount = count;
+    }
+
+    public void setIntervalMs(final int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public void setTimeoutMs(final int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Run the probes
+     * @throws IOException if any of the pings failed
+     */
+    public Result measure() throws IOException {
+        final int classes = mTrafficClasses.length;
+        final Recorder[] recorders = new Recorder[classes];
+        final Thread[] threads = new Thread[classes];
+        for (int i = 0; i < classes; i++) {
+            final Recorder recorder = new Recorder(mCount);
+            final Ping ping = createPing(mDest, mTrafficClasses[i], recorder);
+            ping.setTrafficClass(mTrafficClasses[i]);
+            ping.setCount(mCount);
+            ping.setDelayMs(mIntervalMs);
+            ping.setTimeoutMs(mTimeoutMs);
+            ping.setNetwork(mNetwork);
+            final long offsetMs = (long)mIntervalMs * i / classes;
+            recorders[i] = recorder;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(offsetMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    ping.run();
+                }
+            }, "QosProbe-" + mTrafficClasses[i]);
+            threads[i].start();
+        }
+        try {
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (final Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        final ClassResult[] results = new ClassResult[classes];
+        for (int i = 0; i < classes; i++) {
+            if (recorders[i].mException != null) {
+                throw new IOException("Ping failed for traffic class " + mTrafficClasses[i], recorders[i].mException);
+            }
+            results[i] = new ClassResult(mTrafficClasses[i], recorders[i].mSamples);
+        }
+        return new Result(results);
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected Ping createPing(final InetAddress dest, final int trafficClass, final Ping.PingListener listener) {
+        return new Ping(dest, listener);
+    }
+
+    private static class Recorder implements Ping.PingListener {
+        final long[] mSamples;
+        volatile Exception mException;
+
+        Recorder(final int count) {
+            mSamples = new long[count];
+            Arrays.fill(mSamples, Ping.TIMED_OUT_MS);
+        }
+
+        @Override
+        public void onPing(final long timeMs, final int index) {
+            if (index < mSamples.length) {
+                mSamples[index] = timeMs;
+            }
+        }
+
+        @Override
+        public void onPingException(final Exception e, final int index) {
+            mException = e;
+        }
+    }
+
+    /**
+     * Statistics for one traffic class
+     */
+    public static class ClassResult {
+        private final int mTrafficClass;
+        private final long mMinMs;
+        private final long mMedianMs;
+        private final long mP90Ms;
+        private final float mLoss;
+
+        ClassResult(final int trafficClass, final long[] samples) {
+            final long[] sorted = RttStats.sortReplies(samples);
+            mTrafficClass = trafficClass;
+            mMinMs = sorted.length == 0 ? Ping.TIMED_OUT_MS : sorted[0];
+            mMedianMs = RttStats.percentile(sorted, 50);
+            mP90Ms = RttStats.percentile(sorted, 90);
+            mLoss = 1f - sorted.length / (float)samples.length;
+        }
+
+        public int getTrafficClass() {
+            return mTrafficClass;
+        }
+
+        public int getDscp() {
+            return mTrafficClass >> 2;
+        }
+
+        public long getMinMs() {
+            return mMinMs;
+        }
+
+        /**
+         * @return median RTT or {@link Ping#TIMED_OUT_MS} if nothing came back
+         */
+        public long getMedianMs() {
+            return mMedianMs;
+        }
+
+        public long getP90Ms() {
+            return mP90Ms;
+        }
+
+        public float getLoss() {
+            return mLoss;
+        }
+
+        @Override
+        public String toString() {
+            return "DSCP " + getDscp() + " median " + mMedianMs + "ms p90 " + mP90Ms + "ms loss " + mLoss;
+        }
+    }
+
+    public static class Result {
+        /**
+         * {@link #getMedianDeltaMs(int)} when there is nothing to compare
+         */
+        public static final long NO_DELTA = Long.MIN_VALUE;
+
+        private final ClassResult[] mClasses;
+
+        Result(final ClassResult[] classes) {
+            mClasses = classes;
+        }
+
+        public int size() {
+            return mClasses.length;
+        }
+
+        /**
+         * @param index in the order the traffic classes were passed to the constructor
+         */
+        public ClassResult get(final int index) {
+            return mClasses[index];
+        }
+
+        /**
+         * @return median RTT of the class minus median RTT of the baseline (the first class),
+         * negative when the class is faster, or {@link #NO_DELTA} if either lost everything
+         */
+        public long getMedianDeltaMs(final int index) {
+            final long baseline = mClasses[0].getMedianMs();
+            final long median = mClasses[index].getMedianMs();
+            if (baseline == Ping.TIMED_OUT_MS || median == Ping.TIMED_OUT_MS) {
+                return NO_DELTA;
+            }
+            return median - baseline;
+        }
+
+        /**
+         * @param thresholdMs smallest median difference that counts, to ride out jitter
+         * @return true if any class differs from the baseline in median RTT, or only one of them got replies
+         */
+        public boolean isDifferentiated(final long thresholdMs) {
+            final ClassResult baseline = mClasses[0];
+            for (int i = 1; i < mClasses.length; i++) {
+                final long deltaMs = getMedianDeltaMs(i);
+                if ((baseline.getMedianMs() == Ping.TIMED_OUT_MS) != (mClasses[i].getMedianMs() == Ping.TIMED_OUT_MS)
+                        || (deltaMs != NO_DELTA && Math.abs(deltaMs) >= thresholdMs)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(mClasses);
+        }
+    }
+}
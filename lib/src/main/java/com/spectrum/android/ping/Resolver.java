@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caching host name resolver for ping targets.
+ *
+ * Answers are kept in a bounded LRU cache until their TTL expires.  Entries that are looked up
+ * often are refreshed in the background before they expire, so repeated monitoring runs never
+ * wait on DNS.  Failures are cached briefly too.  Thread safe.
+ */
+public class Resolver {
+    private static final String TAG = Resolver.class.getSimpleName();
+
+    public static final int FAMILY_ANY = 0;
+    public static final int FAMILY_IPV4 = 4;
+    public static final int FAMILY_IPV6 = 6;
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TTL_MS = 60000;
+    public static final long DEFAULT_NEGATIVE_TTL_MS = 5000;
+    private static final int DEFAULT_THREADS = 4;
+
+    private static Resolver sDefault;
+
+    public interface Lookup {
+        /**
+         * Resolve a host, blocking
+         * @param network Network to resolve on or null for the default
+         */
+        Answer lookup(String host, Network network) throws UnknownHostException;
+    }
+
+    public static class Answer {
+        final InetAddress[] mAddresses;
+        final long mTtlMs;
+
+        /**
+         * @param ttlMs how long the addresses may be cached
+         */
+        public Answer(final InetAddress[] addresses, final long ttlMs) {
+            mAddresses = addresses;
+            mTtlMs = ttlMs;
+        }
+    }
+
+    private final Lookup mLookup;
+    private final Executor mExecutor;
+    private final int mCapacity;
+    private final LinkedHashMap<Key, CacheEntry> mCache;
+
+    private long mNegativeTtlMs = DEFAULT_NEGATIVE_TTL_MS;
+    private int mRefreshHits = 2;
+    private float mRefreshFraction = 0.75f;
+
+    /**
+     * @return the process wide Resolver used by {@link Ping} when constructed with a host name
+     */
+    public static synchronized Resolver getDefault() {
+        if (sDefault == null) {
+            sDefault = new Resolver(new SystemLookup(DEFAULT_TTL_MS), newExecutor(DEFAULT_THREADS), DEFAULT_CAPACITY);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param lookup does the actual resolution
+     * @param executor runs background refreshes and batch lookups
+     * @param capacity max cached host names
+     */
+    public Resolver(final Lookup lookup, final Executor executor, final int capacity) {
+        if (lookup == null || executor == null) {
+            throw new NullPointerException();
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mLookup = lookup;
+        mExecutor = executor;
+        mCapacity = capacity;
+        mCache = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CacheEntry> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    public void setNegativeTtlMs(final long negativeTtlMs) {
+        mNegativeTtlMs = negativeTtlMs;
+    }
+
+    /**
+     * An entry is refreshed ahead of expiry once it has been used this many times
+     */
+    public void setRefreshHits(final int refreshHits) {
+        mRefreshHits = refreshHits;
+    }
+
+    /**
+     * @param refreshFraction portion of the TTL after which a popular entry is refreshed, (0, 1]
+     */
+    public void setRefreshFraction(final float refreshFraction) {
+        if (refreshFraction <= 0 || refreshFraction > 1) {
+            throw new IllegalArgumentException("Refresh fraction must be in (0, 1]: " + refreshFraction);
+        }
+        mRefreshFraction = refreshFraction;
+    }
+
+    /**
+     * @param family one of the FAMILY_ constants
+     * @param network Network to resolve on or null for the default
+     * @return the first address of the requested family
+     */
+    public InetAddress resolve(final String host, final int family, final Network network) throws UnknownHostException {
+        final CacheEntry entry = getOrFetch(host, network);
+        return select(host, entry.mAddresses, family);
+    }
+
+    /**
+     * @return all addresses of a host
+     */
+    public InetAddress[] resolveAll(final String host, final Network network) throws UnknownHostException {
+        return getOrFetch(host, network).mAddresses.clone();
+    }
+
+    /**
+     * Resolve a batch of hosts in parallel
+     * @return addresses by host, hosts that failed to resolve are left out
+     */
+    public Map<String, InetAddress[]> resolveAll(final Collection<String> hosts, final Network network) throws InterruptedException {
+        final Map<String, InetAddress[]> results = new HashMap<>();
+        final List<Key> misses = new ArrayList<>();
+        for (final String host : new LinkedHashSet<>(hosts)) {
+            final Key key = new Key(host, network);
+            final CacheEntry entry = get(key);
+            if (entry == null) {
+                misses.add(key);
+            } else if (entry.mFailure == null) {
+                results.put(host, entry.mAddresses.clone());
+            }
+        }
+        final CountDownLatch latch = new CountDownLatch(misses.size());
+        for (final Key key : misses) {
+            final Runnable lookup = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final CacheEntry entry = fetch(key);
+                        if (entry.mFailure == null) {
+                            synchronized (results) {
+                                results.put(key.mHost, entry.mAddresses.clone());
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            try {
+                mExecutor.execute(lookup);
+            } catch (RejectedExecutionException e) {
+                // Saturated or shut down, look it up here rather than never counting down
+                lookup.run();
+            }
+        }
+        latch.await();
+        return results;
+    }
+
+    /**
+     * Drop everything, e.g. after a network change
+     */
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    public synchronized int size() {
+        return mCache.size();
+    }
+
+    /**
+     * @param family one of the FAMILY_ constants
+     * @return the first address of the family
+     */
+    public static InetAddress select(final String host, final InetAddress[] addresses, final int family) throws UnknownHostException {
+        final Class<? extends InetAddress> inetClass;
+        switch (family) {
+            case FAMILY_ANY:
+                if (addresses.length > 0) {
+                    return addresses[0];
+                }
+                throw new UnknownHostException("No address for " + host);
+            case FAMILY_IPV4:
+                inetClass = Inet4Address.class;
+                break;
+            case FAMILY_IPV6:
+                inetClass = Inet6Address.class;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown family: " + family);
+        }
+        for (final InetAddress address : addresses) {
+            if (inetClass.isInstance(address)) {
+                return address;
+            }
+        }
+        throw new UnknownHostException("Could not find IP address of type " + inetClass.getSimpleName() + " for " + host);
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private CacheEntry getOrFetch(final String host, final Network network) throws UnknownHostException {
+        final Key key = new Key(host, network);
+        final CacheEntry cached = get(key);
+        final CacheEntry entry = cached == null ? fetch(key) : cached;
+        if (entry.mFailure != null) {
+            throw entry.mFailure;
+        }
+        return entry;
+    }
+
+    /**
+     * @return a live entry or null, scheduling a refresh if it is popular and getting old
+     */
+    private CacheEntry get(final Key key) {
+        final CacheEntry entry;
+        synchronized (this) {
+            entry = mCache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            final long now = now();
+            if (now >= entry.mExpires) {
+                mCache.remove(key);
+                return null;
+            }
+            entry.mHits++;
+            if (entry.mFailure != null || entry.mRefreshing || entry.mHits < mRefreshHits ||
+                    now < entry.mFetched + (long)((entry.mExpires - entry.mFetched) * mRefreshFraction)) {
+                return entry;
+            }
+            entry.mRefreshing = true;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Try again on a later hit
+            synchronized (this) {
+                entry.mRefreshing = false;
+            }
+        }
+        return entry;
+    }
+
+    private CacheEntry fetch(final Key key) {
+        CacheEntry entry;
+        try {
+            final Answer answer = mLookup.lookup(key.mHost, key.mNetwork);
+            entry = new CacheEntry(answer.mAddresses, null, now(), answer.mTtlMs);
+        } catch (UnknownHostException e) {
+            entry = new CacheEntry(null, e, now(), mNegativeTtlMs);
+        } catch (RuntimeException e) {
+            // e.g. SecurityException without the INTERNET permission, don't cache.  The caller gets it as the cause.
+            synchronized (this) {
+                final CacheEntry previous = mCache.get(key);
+                if (previous != null) {
+                    previous.mRefreshing = false;
+                }
+            }
+            final UnknownHostException unknownHostException = new UnknownHostException(key.mHost);
+            unknownHostException.initCause(e);
+            return new CacheEntry(null, unknownHostException, 0, 0);
+        }
+        synchronized (this) {
+            final CacheEntry previous = mCache.get(key);
+            if (entry.mFailure != null && previous != null && previous.mFailure == null && now() < previous.mExpires) {
+                // A failed background refresh shouldn't throw away a good answer that is still valid
+                previous.mRefreshing = false;
+                return previous;
+            }
+            if (previous != null) {
+                // Keep popularity so refresh ahead continues
+                entry.mHits = previous.mHits;
+            }
+            if (entry.mExpires > entry.mFetched) {
+                mCache.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    private static Executor newExecutor(final int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Lookup through the platform resolver.  It doesn't expose record TTLs, so every answer gets the same TTL.
+     */
+    public static class SystemLookup implements Lookup {
+        private final long mTtlMs;
+
+        public SystemLookup(final long ttlMs) {
+            mTtlMs = ttlMs;
+        }
+
+        @Override
+        public Answer lookup(final String host, final Network network) throws UnknownHostException {
+            final InetAddress[] addresses = network == null ? InetAddress.getAllByName(host) : network.getAllByName(host);
+            return new Answer(addresses, mTtlMs);
+        }
+    }
+
+    private static class Key {
+        final String mHost;
+        final Network mNetwork;
+
+        Key(final String host, final Network network) {
+            if (host == null) {
+                throw new NullPointerException();
+            }
+            mHost = host;
+            mNetwork = network;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key)o;
+            return mHost.equals(other.mHost) && (mNetwork == null ? other.mNetwork == null : mNetwork.equals(other.mNetwork));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHost.hashCode() * 31 + (mNetwork == null ? 0 : mNetwork.hashCode());
+        }
+    }
+
+    private static class CacheEntry {
+        final InetAddress[] mAddresses;
+        final UnknownHostException mFailure;
+        final long mFetched;
+        final long mExpires;
+        int mHits;
+        boolean mRefreshing;
+
+        CacheEntry(final InetAddress[] addresses, final UnknownHostException failure, final long fetched, final long ttlMs) {
+            mAddresses = addresses;
+            mFailure = failure;
+            mFetched = fetched;
+            mExpires = fetched + ttlMs;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * On disk format shared by {@link ResultLogWriter} and {@link ResultLogReader}.
+ *
+ * A log is a directory of fixed size segment files.  Each segment starts with a 16 byte header
+ * (magic, version, base timestamp) followed by records:
+ * <pre>
+ * target: TAG_TARGET varint(id) varint(length) utf8 check
+ * sample: TAG_SAMPLE|status varint(targetId) zigzag(timestamp - previous timestamp) [zigzag(rtt - previous rtt of target)] check
+ * </pre>
+ * The rtt is only present for {@link #STATUS_OK}.  The tag byte is written last, so a record
+ * torn by a crash reads as the zero filled end of the segment.  The check byte is a CRC-8 of the
+ * record and catches pages that reached flash out of order.
+ * Every segment carries its own target table so it can be read (and uploaded) on its own.
+ */
+public final class ResultLog {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_TIMEOUT = 1;
+    public static final int STATUS_ERROR = 2;
+
+    static final int MAGIC = 0x50524C47; //PRLG
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 16;
+
+    static final byte TAG_TARGET = 0x01;
+    static final byte TAG_SAMPLE = 0x10;
+    private static final int MAX_STATUS = 0x0F;
+
+    static final int MAX_VARINT32 = 5;
+    static final int MAX_VARINT64 = 10;
+    /** tag + target id + timestamp delta + rtt delta + check */
+    static final int MAX_SAMPLE_SIZE = 1 + MAX_VARINT32 + MAX_VARINT64 + MAX_VARINT64 + 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_PREFIX = "results-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte[] CRC8_TABLE = new byte[256];
+
+    static {
+        // CRC-8 polynomial x^8 + x^2 + x + 1
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8_TABLE[i] = (byte)crc;
+        }
+    }
+
+    private ResultLog() {
+    }
+
+    static void checkStatus(final int status) {
+        if (status < 0 || status > MAX_STATUS) {
+            throw new IllegalArgumentException("Invalid status: " + status);
+        }
+    }
+
+    static String segmentName(final long number) {
+        return String.format(Locale.US, "%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    static long segmentNumber(final File file) {
+        final String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return the segments in a log directory, oldest first
+     */
+    public static File[] listSegments(final File directory) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // Names are zero padded, so lexical order is segment order
+        Arrays.sort(files);
+        return files;
+    }
+
+    /*
+     * Encoding
+     */
+
+    static void putVarint(final ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    static long getVarint(final ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * CRC-8 of a record.  The tag is passed separately as it is only written once the rest of
+     * the record is in place.
+     */
+    static byte crc8(final byte tag, final ByteBuffer buffer, final int start, final int end) {
+        int crc = CRC8_TABLE[tag & 0xFF] & 0xFF;
+        for (int i = start; i < end; i++) {
+            crc = CRC8_TABLE[(crc ^ buffer.get(i)) & 0xFF];
+        }
+        return (byte)crc;
+    }
+
+    /**
+     * Walks the records of a single segment.  Also used by the writer to find the tail of a
+     * segment and rebuild its encoder state after a restart.
+     */
+    static class SegmentDecoder {
+        private final ByteBuffer mBuffer;
+        final List<String> mTargets = new ArrayList<>();
+        long[] mLastRtts = new long[8];
+        long mLastTimestamp;
+
+        String mTarget;
+        long mTimestamp;
+        long mRtt;
+        int mStatus;
+
+        SegmentDecoder(final ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * @return false if this isn't a segment
+         */
+        boolean readHeader() {
+            if (mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC || mBuffer.get(4) != VERSION) {
+                return false;
+            }
+            mLastTimestamp = mBuffer.getLong(8);
+            mBuffer.position(HEADER_SIZE);
+            return true;
+        }
+
+        /**
+         * Advance to the next sample
+         * @return false at the end of the valid records, the buffer is then positioned at the tail
+         */
+        boolean next() {
+            while (true) {
+                final int start = mBuffer.position();
+                if (start >= mBuffer.limit()) {
+                    return false;
+                }
+                final byte tag = mBuffer.get(start);
+                try {
+                    mBuffer.position(start + 1);
+                    if (tag == TAG_TARGET) {
+                        final int id = (int)getVarint(mBuffer);
+                        final int length = (int)getVarint(mBuffer);
+                        if (id != mTargets.size() || length < 0 || length > mBuffer.remaining()) {
+                            return end(start);
+                        }
+                        final byte[] bytes = new byte[length];
+                        mBuffer.get(bytes);
+                        if (!check(start)) {
+                            return end(start);
+                        }
+                        mTargets.add(new String(bytes, UTF8));
+                        if (id >= mLastRtts.length) {
+                            mLastRtts = Arrays.copyOf(mLastRtts, mLastRtts.length * 2);
+                        }
+                        mLastRtts[id] = 0;
+                    } else if ((tag & ~MAX_STATUS) == TAG_SAMPLE) {
+                        final int status = tag & MAX_STATUS;
+                        final int id = (int)getVarint(mBuffer);
+                        if (id < 0 || id >= mTargets.size()) {
+                            return end(start);
+                        }
+                        final long timestamp = mLastTimestamp + unzigzag(getVarint(mBuffer));
+                        final long rtt = status == STATUS_OK ? mLastRtts[id] + unzigzag(getVarint(mBuffer)) : Ping.TIMED_OUT_MS;
+                        if (!check(start)) {
+                            return end(start);
+                        }
+                        mLastTimestamp = timestamp;
+                        if (status == STATUS_OK) {
+                            mLastRtts[id] = rtt;
+                        }
+                        mTarget = mTargets.get(id);
+                        mTimestamp = timestamp;
+                        mRtt = rtt;
+                        mStatus = status;
+                        return true;
+                    } else {
+                        // Zero fill (end of segment) or garbage from a torn write
+                        return end(start);
+                    }
+                } catch (RuntimeException e) {
+                    // Record runs off the end of the segment or holds a malformed varint
+                    return end(start);
+                }
+            }
+        }
+
+        private boolean check(final int start) {
+            final int end = mBuffer.position();
+            if (end >= mBuffer.limit()) {
+                return false;
+            }
+            final boolean valid = crc8(mBuffer.get(start), mBuffer, start + 1, end) == mBuffer.get(end);
+            mBuffer.position(end + 1);
+            return valid;
+        }
+
+        private boolean end(final int tail) {
+            mBuffer.position(tail);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the samples of a {@link ResultLogWriter} log, oldest first, one segment mapped at a time.
+ * <pre>
+ * while (reader.next()) {
+ *     upload(reader.getTarget(), reader.getTimestampMs(), reader.getRttMs(), reader.getStatus());
+ * }
+ * </pre>
+ * Not thread safe.
+ */
+public class ResultLogReader implements Closeable {
+    private final File[] mSegments;
+    private int mSegmentIndex = -1;
+    private ResultLog.SegmentDecoder mDecoder;
+
+    /**
+     * Read every segment in a log directory
+     */
+    public ResultLogReader(final File directory) {
+        this(ResultLog.listSegments(directory));
+    }
+
+    /**
+     * Read specific segments, e.g. the sealed ones being uploaded
+     */
+    public ResultLogReader(final File... segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Advance to the next sample
+     * @return false when there are no more
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (mDecoder != null && mDecoder.next()) {
+                return true;
+            }
+            mDecoder = null;
+            if (++mSegmentIndex >= mSegments.length) {
+                mSegmentIndex = mSegments.length;
+                return false;
+            }
+            openSegment(mSegments[mSegmentIndex]);
+        }
+    }
+
+    /**
+     * @return the segment of the current sample
+     */
+    public File getSegment() {
+        return mSegmentIndex >= 0 && mSegmentIndex < mSegments.length ? mSegments[mSegmentIndex] : null;
+    }
+
+    public String getTarget() {
+        return mDecoder.mTarget;
+    }
+
+    public long getTimestampMs() {
+        return mDecoder.mTimestamp;
+    }
+
+    /**
+     * @return round trip time or {@link Ping#TIMED_OUT_MS} if the status isn't {@link ResultLog#STATUS_OK}
+     */
+    public long getRttMs() {
+        return mDecoder.mRtt;
+    }
+
+    public int getStatus() {
+        return mDecoder.mStatus;
+    }
+
+    @Override
+    public void close() {
+        mDecoder = null;
+        mSegmentIndex = mSegments.length;
+    }
+
+    private void openSegment(final File file) throws IOException {
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            // The mapping stays valid after the channel is closed
+            final ResultLog.SegmentDecoder decoder = new ResultLog.SegmentDecoder(
+                    randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+            if (decoder.readHeader()) {
+                mDecoder = decoder;
+            }
+        }
+    }
+}
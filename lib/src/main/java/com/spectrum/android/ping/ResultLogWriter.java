@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends probe results to a memory mapped, append only log.  See {@link ResultLog} for the format.
+ *
+ * Appends are plain memory writes, there is no system call per sample.  Data reaches the
+ * page cache immediately (so it survives the app crashing), call {@link #flush()} to force it
+ * to storage.  Thread safe.
+ */
+public class ResultLogWriter implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    private final File mDirectory;
+    private final int mSegmentBytes;
+
+    private long mSegmentNumber;
+    private File mSegmentFile;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+
+    private final Map<String, Integer> mTargetIds = new HashMap<>();
+    private long[] mLastRtts = new long[8];
+    private long mLastTimestamp;
+    private boolean mClosed;
+
+    public ResultLogWriter(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log, recovering the tail of the newest segment if the last writer didn't close cleanly
+     * @param directory log directory, created if needed
+     * @param segmentBytes size of each segment file
+     */
+    public ResultLogWriter(final File directory, final int segmentBytes) throws IOException {
+        if (segmentBytes < ResultLog.HEADER_SIZE + ResultLog.MAX_SAMPLE_SIZE * 2) {
+            throw new IllegalArgumentException("Segment too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+
+        final File[] segments = ResultLog.listSegments(directory);
+        if (segments.length > 0) {
+            final File last = segments[segments.length - 1];
+            mSegmentNumber = ResultLog.segmentNumber(last);
+            // A cleanly closed segment is trimmed to its tail and sealed, only a full size one can be mid write
+            if (last.length() == segmentBytes) {
+                recover(last);
+            }
+        }
+    }
+
+    /**
+     * @param rttMs round trip time or {@link Ping#TIMED_OUT_MS}
+     */
+    public void append(final String target, final long timestampMs, final long rttMs) throws IOException {
+        append(target, timestampMs, rttMs, rttMs == Ping.TIMED_OUT_MS ? ResultLog.STATUS_TIMEOUT : ResultLog.STATUS_OK);
+    }
+
+    /**
+     * @param status one of the ResultLog.STATUS_ constants, the rtt is only kept for {@link ResultLog#STATUS_OK}
+     */
+    public synchronized void append(final String target, final long timestampMs, final long rttMs, final int status) throws IOException {
+        ResultLog.checkStatus(status);
+        if (mClosed) {
+            throw new IOException("Closed");
+        }
+        if (mBuffer == null) {
+            openSegment(timestampMs);
+        }
+        Integer id = mTargetIds.get(target);
+        final byte[] name = target.getBytes(ResultLog.UTF8);
+        if (mBuffer.remaining() < ResultLog.MAX_SAMPLE_SIZE + (id == null ? targetSize(name) : 0)) {
+            if (ResultLog.MAX_SAMPLE_SIZE + targetSize(name) > mSegmentBytes - ResultLog.HEADER_SIZE) {
+                throw new IllegalArgumentException("Target too long for segment: " + target);
+            }
+            rotate(timestampMs);
+            // New segment, new target table
+            id = null;
+        }
+        if (id == null) {
+            id = mTargetIds.size();
+            writeTarget(id, name);
+            mTargetIds.put(target, id);
+        }
+
+        final int start = mBuffer.position();
+        final byte tag = (byte)(ResultLog.TAG_SAMPLE | status);
+        mBuffer.position(start + 1);
+        ResultLog.putVarint(mBuffer, id);
+        ResultLog.putVarint(mBuffer, ResultLog.zigzag(timestampMs - mLastTimestamp));
+        if (status == ResultLog.STATUS_OK) {
+            ResultLog.putVarint(mBuffer, ResultLog.zigzag(rttMs - mLastRtts[id]));
+            mLastRtts[id] = rttMs;
+        }
+        commit(start, tag);
+        mLastTimestamp = timestampMs;
+    }
+
+    /**
+     * Force the current segment to storage
+     */
+    public synchronized void flush() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * Seal the current segment, e.g. so it can be uploaded.  The next append starts a new one.
+     */
+    public synchronized void rotate() throws IOException {
+        closeSegment();
+    }
+
+    /**
+     * @return the segment being written or null
+     */
+    public synchronized File getCurrentSegment() {
+        return mBuffer == null ? null : mSegmentFile;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!mClosed) {
+            mClosed = true;
+            closeSegment();
+        }
+    }
+
+    private void rotate(final long timestampMs) throws IOException {
+        closeSegment();
+        openSegment(timestampMs);
+    }
+
+    private void writeTarget(final int id, final byte[] name) {
+        final int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        ResultLog.putVarint(mBuffer, id);
+        ResultLog.putVarint(mBuffer, name.length);
+        mBuffer.put(name);
+        commit(start, ResultLog.TAG_TARGET);
+        if (id >= mLastRtts.length) {
+            mLastRtts = Arrays.copyOf(mLastRtts, mLastRtts.length * 2);
+        }
+        mLastRtts[id] = 0;
+    }
+
+    /**
+     * Append the check byte, then publish the record by writing its tag
+     */
+    private void commit(final int start, final byte tag) {
+        final int end = mBuffer.position();
+        mBuffer.put(ResultLog.crc8(tag, mBuffer, start + 1, end));
+        mBuffer.put(start, tag);
+    }
+
+    private static int targetSize(final byte[] name) {
+        return 1 + ResultLog.MAX_VARINT32 * 2 + name.length + 1;
+    }
+
+    private void openSegment(final long timestampMs) throws IOException {
+        mSegmentNumber++;
+        final File file = new File(mDirectory, ResultLog.segmentName(mSegmentNumber));
+        map(file);
+        // Magic last, so a crash part way through leaves no header
+        mBuffer.putLong(8, timestampMs);
+        mBuffer.put(4, ResultLog.VERSION);
+        mBuffer.putInt(0, ResultLog.MAGIC);
+        mBuffer.position(ResultLog.HEADER_SIZE);
+        mTargetIds.clear();
+        mLastTimestamp = timestampMs;
+    }
+
+    private void recover(final File file) throws IOException {
+        map(file);
+        final ResultLog.SegmentDecoder decoder = new ResultLog.SegmentDecoder(mBuffer);
+        if (!decoder.readHeader()) {
+            // Crashed before the header was written, nothing worth keeping.  The next segment reuses its number.
+            mBuffer.position(0);
+            closeSegment();
+            if (!file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+            mSegmentNumber--;
+            return;
+        }
+        while (decoder.next()) {
+            //Replay to rebuild the encoder state
+        }
+        final List<String> targets = decoder.mTargets;
+        for (int i = 0; i < targets.size(); i++) {
+            mTargetIds.put(targets.get(i), i);
+        }
+        mLastRtts = decoder.mLastRtts;
+        mLastTimestamp = decoder.mLastTimestamp;
+
+        // Wipe any torn record so the next append isn't followed by stale bytes
+        final int tail = mBuffer.position();
+        int dirty = mBuffer.limit();
+        while (dirty > tail && mBuffer.get(dirty - 1) == 0) {
+            dirty--;
+        }
+        for (int i = tail; i < dirty; i++) {
+            mBuffer.put(i, (byte)0);
+        }
+    }
+
+    private void map(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // Mapping past the end grows the file with zeros
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        mFile = randomAccessFile;
+        mSegmentFile = file;
+    }
+
+    private void closeSegment() throws IOException {
+        if (mBuffer != null) {
+            final int tail = mBuffer.position();
+            mBuffer.force();
+            mBuffer = null;
+            try {
+                // Don't leave the zero filled remainder on disk
+                mFile.setLength(tail);
+            } finally {
+                mFile.close();
+                mFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics over probe results where {@link Ping#TIMED_OUT_MS} marks a loss
+ */
+final class RttStats {
+    private RttStats() {
+    }
+
+    /**
+     * @return the replies in ascending order, losses removed
+     */
+    static long[] sortReplies(final long[] samples) {
+        final long[] replies = new long[samples.length];
+        int count = 0;
+        for (final long sample : samples) {
+            if (sample != Ping.TIMED_OUT_MS) {
+                replies[count++] = sample;
+            }
+        }
+        final long[] sorted = Arrays.copyOf(replies, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Nearest rank percentile
+     * @return {@link Ping#TIMED_OUT_MS} if there are no replies
+     */
+    static long percentile(final long[] sorted, final int percent) {
+        if (sorted.length == 0) {
+            return Ping.TIMED_OUT_MS;
+        }
+        final int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
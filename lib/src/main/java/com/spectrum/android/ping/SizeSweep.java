@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Estimates bottleneck capacity from how RTT grows with packet size, pathchar style.
+ *
+ * Every size is probed several times in random order, so drifting cross traffic hits all sizes
+ * alike.  The minimum RTT per size filters out queueing, leaving propagation plus serialization.
+ * A least squares fit of min RTT against packet size then gives the serialization time per byte
+ * (slope) and the fixed delay (intercept).
+ *
+ * Echo replies are as large as the request, so the slope covers both directions and every store
+ * and forward hop on the way.  {@link Result#getBitsPerSecond()} is therefore a lower bound on
+ * the bottleneck, about half of it on a symmetric link.  Keep sizes below the path MTU.
+ * Blocks for roughly sizes * rounds * interval, don't call it on the UI Thread.
+ */
+public class SizeSweep {
+    private final InetAddress mDest;
+    private final int[] mPayloadSizes;
+    private Network mNetwork;
+
+    private int mRounds = 10;
+    private int mIntervalMs = 20;
+    private int mTimeoutMs = 1000;
+
+    /**
+     * @param dest destination
+     * @param payloadSizes echo payload sizes in bytes, at least two different ones
+     */
+    public SizeSweep(final InetAddress dest, final int... payloadSizes) {
+        if (payloadSizes.length < 2) {
+            throw new IllegalArgumentException("Need at least two sizes");
+        }
+        for (final int payloadSize : payloadSizes) {
+            if (payloadSize < 0 || payloadSize > EchoPacketBuilder.MAX_PAYLOAD) {
+                throw new IllegalArgumentException("Invalid payload size: " + payloadSize);
+            }
+        }
+        mDest = dest;
+        mPayloadSizes = payloadSizes.clone();
+    }
+
+    /**
+     * @param steps sizes evenly spaced from minPayload to maxPayload inclusive
+     */
+    public static int[] linearSizes(final int minPayload, final int maxPayload, final int steps) {
+        if (steps < 2 || maxPayload <= minPayload) {
+            throw new IllegalArgumentException("Invalid range");
+        }
+        final int[] sizes = new int[steps];
+        for (int i = 0; i < steps; i++) {
+            sizes[i] = minPayload + (int)((long)(maxPayload - minPayload) * i / (steps - 1));
+        }
+        return sizes;
+    }
+
+    public void setNetwork(final Network network) {
+        mNetwork = network;
+    }
+
+    /**
+     * @param rounds probes per size
+     */
+    public void setRounds(final int rounds) {
+        if (rounds <= 0) {
+            throw new IllegalArgumentException("Rounds must be positive: " + rounds);
+        }
+        mRounds = rounds;
+    }
+
+    public void setIntervalMs(final int intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public void setTimeoutMs(final int timeoutMs) {
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Run the sweep
+     * @throws IOException if the ping failed
+     */
+    public Result measure() throws IOException {
+        final byte type = mDest instanceof Inet6Address ? EchoPacketBuilder.TYPE_ICMP_V6 : EchoPacketBuilder.TYPE_ICMP_V4;
+        final Schedule schedule = new Schedule(type, mPayloadSizes, mRounds, newRandom());
+        final Recorder recorder = new Recorder(schedule);
+        final Ping ping = createPing(mDest, recorder);
+        ping.setEchoPacketBuilder(schedule);
+        // Late replies would be credited to the wrong size, drop them
+        ping.setEchoStamp(new EchoStamp(), 0);
+        ping.setCount(schedule.mOrder.length);
+        ping.setDelayMs(mIntervalMs);
+        ping.setTimeoutMs(mTimeoutMs);
+        ping.setNetwork(mNetwork);
+        ping.run();
+        if (recorder.mException != null) {
+            throw new IOException("Ping failed", recorder.mException);
+        }
+        return new Result(schedule.mPacketSizes, recorder.mMinNanos);
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected Ping createPing(final InetAddress dest, final Ping.PingListener listener) {
+        return new Ping(dest, listener);
+    }
+
+    protected Random newRandom() {
+        return new Random();
+    }
+
+    /**
+     * Hands Ping the next size in a shuffled order.  Each size has its own builder and payload
+     * allocated up front, and {@link #getPacketSize()} reports the largest so Ping sizes its
+     * buffers once.
+     */
+    private static class Schedule extends EchoPacketBuilder {
+        final EchoPacketBuilder[] mBuilders;
+        final int[] mPacketSizes;
+        final int[] mOrder;
+        private int mMaxPacketSize;
+        private int mNext;
+
+        Schedule(final byte type, final int[] payloadSizes, final int rounds, final Random random) {
+            super(type, null);
+            mBuilders = new EchoPacketBuilder[payloadSizes.length];
+            mPacketSizes = new int[payloadSizes.length];
+            mOrder = new int[payloadSizes.length * rounds];
+            for (int i = 0; i < payloadSizes.length; i++) {
+                mBuilders[i] = new EchoPacketBuilder(type, new byte[payloadSizes[i]]);
+                for (int r = 0; r < rounds; r++) {
+                    mOrder[r * payloadSizes.length + i] = i;
+                }
+            }
+            updatePacketSizes();
+            // Fisher-Yates
+            for (int i = mOrder.length - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final int swap = mOrder[i];
+                mOrder[i] = mOrder[j];
+                mOrder[j] = swap;
+            }
+        }
+
+        private void updatePacketSizes() {
+            mMaxPacketSize = 0;
+            for (int i = 0; i < mBuilders.length; i++) {
+                mPacketSizes[i] = mBuilders[i].getPacketSize();
+                mMaxPacketSize = Math.max(mMaxPacketSize, mPacketSizes[i]);
+            }
+        }
+
+        @Override
+        public void setStamp(final EchoStamp stamp, final int target) {
+            super.setStamp(stamp, target);
+            for (final EchoPacketBuilder builder : mBuilders) {
+                builder.setStamp(stamp, target);
+            }
+            // Stamps pad small payloads
+            updatePacketSizes();
+        }
+
+        @Override
+        public int getPacketSize() {
+            return mMaxPacketSize;
+        }
+
+        @Override
+        public ByteBuffer build(final ByteBuffer byteBuffer, final long sendNanos) {
+            return mBuilders[mOrder[mNext++ % mOrder.length]].build(byteBuffer, sendNanos);
+        }
+    }
+
+    private static class Recorder implements Ping.NanosPingListener {
+        final Schedule mSchedule;
+        final long[] mMinNanos;
+        Exception mException;
+
+        Recorder(final Schedule schedule) {
+            mSchedule = schedule;
+            mMinNanos = new long[schedule.mBuilders.length];
+            Arrays.fill(mMinNanos, Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onPingNanos(final long timeNanos, final int index) {
+            if (timeNanos != Ping.TIMED_OUT_MS && index < mSchedule.mOrder.length) {
+                final int size = mSchedule.mOrder[index];
+                mMinNanos[size] = Math.min(mMinNanos[size], timeNanos);
+            }
+        }
+
+        @Override
+        public void onPing(final long timeMs, final int index) {
+            //Not called for NanosPingListener
+        }
+
+        @Override
+        public void onPingException(final Exception e, final int index) {
+            mException = e;
+        }
+    }
+
+    public static class Result {
+        private final int[] mPacketSizes;
+        private final long[] mMinRttNanos;
+        private final int mPoints;
+        private final double mSlope;
+        private final double mIntercept;
+        private final double mRSquared;
+
+        Result(final int[] packetSizes, final long[] minNanos) {
+            mPacketSizes = packetSizes.clone();
+            mMinRttNanos = new long[minNanos.length];
+            double sumX = 0, sumY = 0;
+            int n = 0;
+            for (int i = 0; i < minNanos.length; i++) {
+                if (minNanos[i] == Long.MAX_VALUE) {
+                    mMinRttNanos[i] = Ping.TIMED_OUT_MS;
+                } else {
+                    mMinRttNanos[i] = minNanos[i];
+                    sumX += packetSizes[i];
+                    sumY += minNanos[i];
+                    n++;
+                }
+            }
+            mPoints = n;
+            double sxx = 0, sxy = 0, syy = 0;
+            if (n > 0) {
+                final double meanX = sumX / n;
+                final double meanY = sumY / n;
+                for (int i = 0; i < minNanos.length; i++) {
+                    if (mMinRttNanos[i] != Ping.TIMED_OUT_MS) {
+                        final double dx = packetSizes[i] - meanX;
+                        final double dy = mMinRttNanos[i] - meanY;
+                        sxx += dx * dx;
+                        sxy += dx * dy;
+                        syy += dy * dy;
+                    }
+                }
+                mSlope = sxx == 0 ? Double.NaN : sxy / sxx;
+                mIntercept = meanY - mSlope * meanX;
+                // A perfectly flat line is a perfect fit
+                mRSquared = syy == 0 ? 1 : sxy * sxy / (sxx * syy);
+            } else {
+                mSlope = Double.NaN;
+                mIntercept = Double.NaN;
+                mRSquared = Double.NaN;
+            }
+        }
+
+        public int size() {
+            return mPacketSizes.length;
+        }
+
+        /**
+         * @return ICMP packet size (header, stamp and payload) of the index'th size
+         */
+        public int getPacketSize(final int index) {
+            return mPacketSizes[index];
+        }
+
+        /**
+         * @return minimum RTT seen for the index'th size or {@link Ping#TIMED_OUT_MS} if none came back
+         */
+        public long getMinRttNanos(final int index) {
+            return mMinRttNanos[index];
+        }
+
+        /**
+         * @return sizes that got at least one reply, and so went into the fit
+         */
+        public int getPoints() {
+            return mPoints;
+        }
+
+        /**
+         * @return extra RTT per byte of packet, NaN if fewer than two sizes got replies
+         */
+        public double getSlopeNanosPerByte() {
+            return mSlope;
+        }
+
+        /**
+         * @return RTT of a zero length packet, i.e. propagation and per packet overhead
+         */
+        public double getInterceptNanos() {
+            return mIntercept;
+        }
+
+        /**
+         * @return coefficient of determination of the fit, near 1 when RTT is linear in size
+         */
+        public double getRSquared() {
+            return mRSquared;
+        }
+
+        /**
+         * @return 8 bits over the slope, NaN if the slope isn't positive
+         */
+        public double getBitsPerSecond() {
+            return mSlope > 0 ? 8e9 / mSlope : Double.NaN;
+        }
+
+        @Override
+        public String toString() {
+            return "slope " + mSlope + "ns/B intercept " + mIntercept + "ns r2 " + mRSquared + " ~" + (long)getBitsPerSecond() + "bps";
+        }
+    }
+}
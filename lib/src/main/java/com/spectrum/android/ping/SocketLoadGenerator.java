@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+/**
+ * TCP load: upload streams write to a sink that discards (e.g. a discard service), download
+ * streams read from a source that sends until closed (e.g. a chargen service).
+ * Load threads run at minimum priority so they don't delay the probe thread.
+ */
+public class SocketLoadGenerator implements LoadGenerator {
+    private static final String TAG = SocketLoadGenerator.class.getSimpleName();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final InetSocketAddress mUploadSink;
+    private final InetSocketAddress mDownloadSource;
+    private final int mStreams;
+    private Network mNetwork;
+
+    private final List<Socket> mSockets = new ArrayList<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private volatile boolean mRunning;
+
+    /**
+     * @param uploadSink where to send, null for no upload
+     * @param downloadSource where to receive from, null for no download
+     * @param streams connections per direction
+     */
+    public SocketLoadGenerator(final InetSocketAddress uploadSink, final InetSocketAddress downloadSource, final int streams) {
+        if (streams <= 0) {
+            throw new IllegalArgumentException("Streams must be positive: " + streams);
+        }
+        mUploadSink = uploadSink;
+        mDownloadSource = downloadSource;
+        mStreams = streams;
+    }
+
+    /**
+     * Load a specific Network, normally the one being pinged
+     */
+    public void setNetwork(final Network network) {
+        mNetwork = network;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            throw new IllegalStateException("Already started");
+        }
+        mRunning = true;
+        mBytesSent.set(0);
+        mBytesReceived.set(0);
+        final SocketFactory socketFactory = mNetwork == null ? SocketFactory.getDefault() : mNetwork.getSocketFactory();
+        try {
+            for (int i = 0; i < mStreams; i++) {
+                if (mUploadSink != null) {
+                    startStream(socketFactory, mUploadSink, true);
+                }
+                if (mDownloadSource != null) {
+                    startStream(socketFactory, mDownloadSource, false);
+                }
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        mRunning = false;
+        for (final Socket socket : mSockets) {
+            try {
+                // Unblocks the stream thread
+                socket.close();
+            } catch (IOException e) {
+                //Intentionally blank
+            }
+        }
+        for (final Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mSockets.clear();
+        mThreads.clear();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    private void startStream(final SocketFactory socketFactory, final InetSocketAddress address, final boolean upload) throws IOException {
+        final Socket socket = socketFactory.createSocket();
+        mSockets.add(socket);
+        socket.connect(address, CONNECT_TIMEOUT_MS);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    if (upload) {
+                        final OutputStream out = socket.getOutputStream();
+                        while (mRunning) {
+                            out.write(buffer);
+                            mBytesSent.addAndGet(buffer.length);
+                        }
+                    } else {
+                        final InputStream in = socket.getInputStream();
+                        int read;
+                        while (mRunning && (read = in.read(buffer)) >= 0) {
+                            mBytesReceived.addAndGet(read);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (mRunning) {
+                        Log.w(TAG, (upload ? "Upload" : "Download") + " stream failed", e);
+                    }
+                }
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        mThreads.add(thread);
+        thread.start();
+    }
+}
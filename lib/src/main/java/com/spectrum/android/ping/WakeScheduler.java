@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coalesces the delays of many {@link Ping}s into shared wake ups.
+ *
+ * Each wait may end anywhere in [deadline, deadline + slack].  Waits whose windows overlap are
+ * put in the same slot, which fires once at the latest deadline of its members, releasing all of
+ * them together so their probes go out as one batch.  A single timer thread does the waiting, so
+ * N targets cost one wake up per slot instead of N.  The timer thread exits whenever nothing is
+ * waiting, so an idle scheduler holds no thread.  Periodic targets sharing a scheduler fall
+ * into step after their first probe.
+ * <pre>
+ * final WakeScheduler scheduler = new WakeScheduler(500);
+ * for (Ping ping : pings) {
+ *     ping.setWakeScheduler(scheduler);
+ *     executor.execute(ping);
+ * }
+ * </pre>
+ * Thread safe.
+ */
+public class WakeScheduler {
+    private static final String TAG = WakeScheduler.class.getSimpleName();
+
+    private final long mSlackMs;
+    private final List<Slot> mSlots = new ArrayList<>();
+    private Thread mTimer;
+
+    private long mRequests;
+    private long mWakeups;
+
+    /**
+     * @param slackMs how late a wait may end to share a wake up
+     */
+    public WakeScheduler(final long slackMs) {
+        if (slackMs < 0) {
+            throw new IllegalArgumentException("Slack must not be negative: " + slackMs);
+        }
+        mSlackMs = slackMs;
+    }
+
+    public long getSlackMs() {
+        return mSlackMs;
+    }
+
+    /**
+     * Block for at least delayMs, and at most delayMs + slack
+     */
+    public void await(final long delayMs) throws InterruptedException {
+        // now() truncates, round up so the wait is never short
+        final long deadline = now() + delayMs + 1;
+        final Slot slot;
+        synchronized (this) {
+            mRequests++;
+            slot = join(deadline);
+            if (mTimer == null) {
+                mTimer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTimer();
+                    }
+                }, TAG);
+                mTimer.setDaemon(true);
+                mTimer.start();
+            }
+            notifyAll();
+        }
+        synchronized (slot) {
+            while (!slot.mFired) {
+                slot.wait();
+            }
+        }
+    }
+
+    /**
+     * @return waits requested
+     */
+    public synchronized long getRequests() {
+        return mRequests;
+    }
+
+    /**
+     * @return slots fired, i.e. times the timer woke up to release waiters
+     */
+    public synchronized long getWakeups() {
+        return mWakeups;
+    }
+
+    synchronized boolean hasTimer() {
+        return mTimer != null;
+    }
+
+    /*
+     * Testability methods
+     */
+
+    protected long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private Slot join(final long deadline) {
+        final long latest = deadline + mSlackMs;
+        Slot best = null;
+        for (final Slot slot : mSlots) {
+            // Windows overlap, prefer the slot that fires soonest
+            if (deadline <= slot.mEnd && latest >= slot.mStart && (best == null || slot.mStart < best.mStart)) {
+                best = slot;
+            }
+        }
+        if (best == null) {
+            best = new Slot(deadline, latest);
+            mSlots.add(best);
+        } else {
+            best.mStart = Math.max(best.mStart, deadline);
+            best.mEnd = Math.min(best.mEnd, latest);
+        }
+        return best;
+    }
+
+    private void runTimer() {
+        while (true) {
+            final Slot due;
+            synchronized (this) {
+                Slot next = null;
+                for (final Slot slot : mSlots) {
+                    if (next == null || slot.mStart < next.mStart) {
+                        next = slot;
+                    }
+                }
+                if (next == null) {
+                    // Nothing pending, the next await() starts a new timer
+                    mTimer = null;
+                    return;
+                }
+                final long now = now();
+                if (next.mStart > now) {
+                    try {
+                        wait(next.mStart - now);
+                    } catch (InterruptedException e) {
+                        //Intentionally blank
+                    }
+                    continue;
+                }
+                mSlots.remove(next);
+                mWakeups++;
+                due = next;
+            }
+            synchronized (due) {
+                due.mFired = true;
+                due.notifyAll();
+            }
+        }
+    }
+
+    private static class Slot {
+        long mStart;
+        long mEnd;
+        boolean mFired;
+
+        Slot(final long start, final long end) {
+            mStart = start;
+            mEnd = end;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Ping impl that talks to a {@link NetworkEmulator} instead of a socket.
+ */
+public class EmulatedPing extends Ping {
+    private final NetworkEmulator mEmulator;
+
+    public EmulatedPing(final InetAddress dest, final PingListener listener, final NetworkEmulator emulator) {
+        super(dest, listener);
+        mEmulator = emulator;
+    }
+
+    public NetworkEmulator getEmulator() {
+        return mEmulator;
+    }
+
+    @Override
+    protected long currentTimeMillis() {
+        return mEmulator.nowMillis();
+    }
+
+    @Override
+    protected long nanoTime() {
+        return mEmulator.nowNanos();
+    }
+
+    @Override
+    protected FileDescriptor socket(final int inet, final int proto) {
+        return FileDescriptor.in;
+    }
+
+    @Override
+    protected void setsockoptInt(final FileDescriptor fd, final int level, final int option, final int value) {
+        //Intentionally blank
+    }
+
+    @Override
+    protected int sendto(final FileDescriptor fd, final ByteBuffer byteBuffer) {
+        final int length = byteBuffer.remaining();
+        mEmulator.send(byteBuffer.array(), length);
+        return length;
+    }
+
+    @Override
+    protected int poll(final StructPollfd[] structPollfds, final int timeoutMs) {
+        structPollfds[0].revents = mEmulator.poll(timeoutMs) ? POLLIN : 0;
+        return 0;
+    }
+
+    @Override
+    protected int recvfrom(final FileDescriptor fd, final byte[] buffer) {
+        return mEmulator.receive(buffer);
+    }
+
+    @Override
+    protected void close(final FileDescriptor fd) {
+        //Intentionally blank
+    }
+
+    @Override
+    protected void sleep() {
+        mEmulator.advance(getDelayMs() * 1000000L);
+    }
+}
@@ -30,14 +30,21 @@ import java.util.Arrays;
 public class MockPing extends Ping {
     private int mCount;
     private byte[] mBuffer;
+    private int mLength;
 
     final int timeouts[];
+    int trafficClass = TRAFFIC_CLASS_NONE;
 
     public MockPing(final InetAddress dest, final PingListener listener, int ... timeouts) {
         super(dest, listener);
         this.timeouts = timeouts;
     }
 
+    public MockPing(final String host, final int family, final PingListener listener, int ... timeouts) {
+        super(host, family, listener);
+        this.timeouts = timeouts;
+    }
+
     @Override
     protected long calcLatency(final long startTimestamp, final long endTimestamp) {
         return mCount + 10;
@@ -50,18 +57,19 @@ public class MockPing extends Ping {
     }
 
     @Override
-    protected void setLowDelay(final FileDescriptor fd) {
-        //Intentionally blank
+    protected void setsockoptInt(final FileDescriptor fd, final int level, final int option, final int value) {
+        trafficClass = value;
     }
 
     @Override
     protected int sendto(final FileDescriptor fd, final ByteBuffer byteBuffer) throws ErrnoException {
         mBuffer = byteBuffer.array();
-        return mBuffer.length;
+        mLength = byteBuffer.limit();
+        return mLength;
     }
 
     @Override
-    protected int poll(final StructPollfd[] structPollfds) {
+    protected int poll(final StructPollfd[] structPollfds, final int timeoutMs) {
         final short revents;
         if (Arrays.binarySearch(timeouts, mCount) >= 0) {
             revents = 0;
@@ -75,8 +83,8 @@ public class MockPing extends Ping {
 
     @Override
     protected int recvfrom(final FileDescriptor fd, final byte[] buffer) {
-        System.arraycopy(mBuffer, 0, buffer, 0, mBuffer.length);
-        return mBuffer.length;
+        System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+        return mLength;
     }
 
     @Override
@@ -86,6 +94,9 @@ public class MockPing extends Ping {
 
     @Override
     protected void sleep() {
-        //Intentionally blank
+        //Only really wait when testing a WakeScheduler
+        if (getWakeScheduler() != null) {
+            super.sleep();
+        }
     }
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * In-process stand-in for a network path.  Echo requests handed to {@link #send(byte[], int)}
+ * come back as echo replies after a simulated delay, subject to loss, reordering, duplication
+ * and a bandwidth cap.  Time is virtual, so nothing ever sleeps.
+ *
+ * Not thread safe, drive it from the thread running the {@link Ping}.
+ */
+public class NetworkEmulator {
+    private static final long NANOS_PER_MS = 1000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final byte TYPE_ECHO_REPLY_V4 = 0;
+    private static final byte TYPE_ECHO_REPLY_V6 = (byte)129;
+
+    public interface DelayModel {
+        /**
+         * @return round trip delay for the next packet in nanoseconds
+         */
+        long delayNanos(Random random);
+    }
+
+    private final Random mRandom;
+    private final PriorityQueue<Delivery> mInFlight = new PriorityQueue<>();
+
+    private long mNowNanos;
+    private long mOrder;
+    private long mLinkFreeNanos;
+
+    private DelayModel mDelayModel = constant(0);
+    private long mBitsPerSecond;
+    private double mReorderProbability;
+    private long mReorderNanos;
+    private double mDuplicateProbability;
+
+    // Gilbert-Elliott two state loss model
+    private double mGoodToBad;
+    private double mBadToGood = 1.0;
+    private double mLossGood;
+    private double mLossBad;
+    private boolean mBad;
+
+    private long mSent;
+    private long mLost;
+    private long mReordered;
+    private long mDuplicated;
+    private long mDelivered;
+
+    public NetworkEmulator(final long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /*
+     * Delay models
+     */
+
+    public static DelayModel constant(final long delayMs) {
+        final long delayNanos = delayMs * NANOS_PER_MS;
+        return new DelayModel() {
+            @Override
+            public long delayNanos(final Random random) {
+                return delayNanos;
+            }
+        };
+    }
+
+    public static DelayModel uniform(final long minMs, final long maxMs) {
+        if (maxMs < minMs) {
+            throw new IllegalArgumentException("maxMs < minMs");
+        }
+        final long minNanos = minMs * NANOS_PER_MS;
+        final double rangeNanos = (maxMs - minMs) * NANOS_PER_MS;
+        return new DelayModel() {
+            @Override
+            public long delayNanos(final Random random) {
+                return minNanos + (long)(random.nextDouble() * rangeNanos);
+            }
+        };
+    }
+
+    /**
+     * Normally distributed jitter around a mean, clamped so it never goes below zero
+     */
+    public static DelayModel normal(final double meanMs, final double jitterMs) {
+        return new DelayModel() {
+            @Override
+            public long delayNanos(final Random random) {
+                final double delayMs = meanMs + random.nextGaussian() * jitterMs;
+                return delayMs <= 0 ? 0 : (long)(delayMs * NANOS_PER_MS);
+            }
+        };
+    }
+
+    /**
+     * Fixed base delay plus an exponentially distributed queueing component
+     */
+    public static DelayModel exponential(final double baseMs, final double meanExtraMs) {
+        return new DelayModel() {
+            @Override
+            public long delayNanos(final Random random) {
+                final double extraMs = -Math.log(1.0 - random.nextDouble()) * meanExtraMs;
+                return (long)((baseMs + extraMs) * NANOS_PER_MS);
+            }
+        };
+    }
+
+    /*
+     * Configuration
+     */
+
+    public NetworkEmulator setDelayModel(final DelayModel delayModel) {
+        if (delayModel == null) {
+            throw new NullPointerException();
+        }
+        mDelayModel = delayModel;
+        return this;
+    }
+
+    /**
+     * Uniform random loss
+     */
+    public NetworkEmulator setLoss(final double probability) {
+        return setGilbertElliottLoss(0, 1, probability, probability);
+    }
+
+    /**
+     * Bursty loss.  The channel is either Good or Bad, and each packet drops with the loss
+     * probability of the current state.
+     * @param goodToBad probability of moving from Good to Bad before each packet
+     * @param badToGood probability of moving from Bad to Good before each packet
+     * @param lossGood loss probability while Good
+     * @param lossBad loss probability while Bad
+     */
+    public NetworkEmulator setGilbertElliottLoss(final double goodToBad, final double badToGood,
+                                                 final double lossGood, final double lossBad) {
+        checkProbability(goodToBad);
+        checkProbability(badToGood);
+        checkProbability(lossGood);
+        checkProbability(lossBad);
+        mGoodToBad = goodToBad;
+        mBadToGood = badToGood;
+        mLossGood = lossGood;
+        mLossBad = lossBad;
+        mBad = false;
+        return this;
+    }
+
+    /**
+     * @param probability chance a packet is held back
+     * @param extraDelayMs how long it is held back, so that packets sent after it overtake it
+     */
+    public NetworkEmulator setReorder(final double probability, final long extraDelayMs) {
+        checkProbability(probability);
+        mReorderProbability = probability;
+        mReorderNanos = extraDelayMs * NANOS_PER_MS;
+        return this;
+    }
+
+    public NetworkEmulator setDuplicate(final double probability) {
+        checkProbability(probability);
+        mDuplicateProbability = probability;
+        return this;
+    }
+
+    /**
+     * @param bitsPerSecond bottleneck rate, 0 for unlimited
+     */
+    public NetworkEmulator setBandwidth(final long bitsPerSecond) {
+        if (bitsPerSecond < 0) {
+            throw new IllegalArgumentException("Bandwidth must not be negative: " + bitsPerSecond);
+        }
+        mBitsPerSecond = bitsPerSecond;
+        return this;
+    }
+
+    private static void checkProbability(final double probability) {
+        if (probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("Probability must be in [0, 1]: " + probability);
+        }
+    }
+
+    /*
+     * Virtual clock
+     */
+
+    public long nowNanos() {
+        return mNowNanos;
+    }
+
+    public long nowMillis() {
+        return mNowNanos / NANOS_PER_MS;
+    }
+
+    public void advance(final long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Time only moves forward: " + nanos);
+        }
+        mNowNanos += nanos;
+    }
+
+    /*
+     * Socket side
+     */
+
+    /**
+     * Queue an echo request, the matching echo reply(s) become readable once their delay elapses.
+     */
+    public void send(final byte[] packet, final int length) {
+        mSent++;
+        long departure = mNowNanos;
+        if (mBitsPerSecond > 0) {
+            // Packets queue behind each other at the bottleneck
+            departure = Math.max(departure, mLinkFreeNanos) + length * 8L * NANOS_PER_SECOND / mBitsPerSecond;
+            mLinkFreeNanos = departure;
+        }
+
+        if (mBad) {
+            if (mRandom.nextDouble() < mBadToGood) {
+                mBad = false;
+            }
+        } else if (mRandom.nextDouble() < mGoodToBad) {
+            mBad = true;
+        }
+        if (mRandom.nextDouble() < (mBad ? mLossBad : mLossGood)) {
+            mLost++;
+            return;
+        }
+
+        final byte[] reply = toReply(packet, length);
+        schedule(departure, reply);
+        if (mDuplicateProbability > 0 && mRandom.nextDouble() < mDuplicateProbability) {
+            mDuplicated++;
+            schedule(departure, reply);
+        }
+    }
+
+    private void schedule(final long departure, final byte[] reply) {
+        long arrival = departure + mDelayModel.delayNanos(mRandom);
+        if (mReorderProbability > 0 && mRandom.nextDouble() < mReorderProbability) {
+            mReordered++;
+            arrival += mReorderNanos;
+        }
+        mInFlight.add(new Delivery(arrival, mOrder++, reply));
+    }
+
+    /**
+     * Block (virtually) until a reply is readable or the timeout elapses.
+     * @return true if a reply can be read
+     */
+    public boolean poll(final long timeoutMs) {
+        final Delivery next = mInFlight.peek();
+        final long deadline = mNowNanos + timeoutMs * NANOS_PER_MS;
+        if (next != null && next.mArrival <= deadline) {
+            if (next.mArrival > mNowNanos) {
+                mNowNanos = next.mArrival;
+            }
+            return true;
+        }
+        mNowNanos = deadline;
+        return false;
+    }
+
+    /**
+     * Read the oldest arrived reply
+     * @return bytes copied or -1 if nothing has arrived
+     */
+    public int receive(final byte[] buffer) {
+        final Delivery next = mInFlight.peek();
+        if (next == null || next.mArrival > mNowNanos) {
+            return -1;
+        }
+        mInFlight.poll();
+        mDelivered++;
+        final int length = Math.min(buffer.length, next.mData.length);
+        System.arraycopy(next.mData, 0, buffer, 0, length);
+        return length;
+    }
+
+    private static byte[] toReply(final byte[] packet, final int length) {
+        final byte[] reply = new byte[length];
+        System.arraycopy(packet, 0, reply, 0, length);
+        if (length >= 4) {
+            reply[0] = reply[0] == EchoPacketBuilder.TYPE_ICMP_V6 ? TYPE_ECHO_REPLY_V6 : TYPE_ECHO_REPLY_V4;
+            reply[2] = 0;
+            reply[3] = 0;
+            final short checksum = EchoPacketBuilder.checksum(reply, length);
+            reply[2] = (byte)(checksum >> 8);
+            reply[3] = (byte)checksum;
+        }
+        return reply;
+    }
+
+    /*
+     * Counters
+     */
+
+    public long getSent() {
+        return mSent;
+    }
+
+    public long getLost() {
+        return mLost;
+    }
+
+    public long getReordered() {
+        return mReordered;
+    }
+
+    public long getDuplicated() {
+        return mDuplicated;
+    }
+
+    public long getDelivered() {
+        return mDelivered;
+    }
+
+    public int getInFlight() {
+        return mInFlight.size();
+    }
+
+    private static class Delivery implements Comparable<Delivery> {
+        final long mArrival;
+        // Tie breaker so equal arrival times keep send order
+        final long mOrder;
+        final byte[] mData;
+
+        Delivery(final long arrival, final long order, final byte[] data) {
+            mArrival = arrival;
+            mOrder = order;
+            mData = data;
+        }
+
+        @Override
+        public int compareTo(final Delivery other) {
+            if (mArrival != other.mArrival) {
+                return mArrival < other.mArrival ? -1 : 1;
+            }
+            return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAdaptiveRate {
+    private static final long HOUR_MS = 3600000L;
+
+    static class MockAdaptiveRate extends AdaptiveRate {
+        long now;
+
+        MockAdaptiveRate(final Ping.PingListener listener) {
+            super(listener);
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testBackoffWhenStable() {
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final MockAdaptiveRate rate = new MockAdaptiveRate(listener);
+        final MockPing ping = new MockPing(null, rate);
+        rate.setDelayRange(100, 8000);
+        rate.attach(ping);
+        Assert.assertEquals(1000, ping.getDelayMs());
+        for (int i = 0; i < 40; i++) {
+            rate.onPing(20 + i % 3, i);
+        }
+        Assert.assertEquals(40, listener.pingCount);
+        Assert.assertEquals(8000, ping.getDelayMs());
+        Assert.assertEquals(0, rate.getAnomalies());
+    }
+
+    @Test
+    public void testBurstOnLoss() {
+        final MockAdaptiveRate rate = new MockAdaptiveRate(new TestNetworkEmulator.CountingListener());
+        final MockPing ping = new MockPing(null, rate);
+        rate.setBurstProbes(5);
+        rate.attach(ping);
+        for (int i = 0; i < 20; i++) {
+            rate.onPing(20, i);
+        }
+        Assert.assertTrue(ping.getDelayMs() > 1000);
+        rate.onPing(Ping.TIMED_OUT_MS, 20);
+        Assert.assertTrue(rate.isBursting());
+        Assert.assertEquals(100, ping.getDelayMs());
+        for (int i = 0; i < 4; i++) {
+            rate.onPing(20, 21 + i);
+            Assert.assertEquals(100, ping.getDelayMs());
+        }
+        Assert.assertFalse(rate.isBursting());
+    }
+
+    @Test
+    public void testBurstOnLatencyShift() {
+        final MockAdaptiveRate rate = new MockAdaptiveRate(new TestNetworkEmulator.CountingListener());
+        final MockPing ping = new MockPing(null, rate);
+        rate.attach(ping);
+        for (int i = 0; i < 20; i++) {
+            rate.onPing(20 + i % 2, i);
+        }
+        Assert.assertEquals(0, rate.getAnomalies());
+        //Bufferbloat: +30ms
+        rate.onPing(50, 20);
+        rate.onPing(51, 21);
+        Assert.assertEquals(1, rate.getAnomalies());
+        Assert.assertEquals(100, ping.getDelayMs());
+    }
+
+    @Test
+    public void testBudget() {
+        final MockAdaptiveRate rate = new MockAdaptiveRate(new TestNetworkEmulator.CountingListener());
+        final MockPing ping = new MockPing(null, rate);
+        rate.setBudget(10, 10000);
+        rate.attach(ping);
+        //Constant loss wants a permanent burst, the budget allows one probe a second once the bucket is empty
+        for (int i = 0; i < 11; i++) {
+            rate.onPing(Ping.TIMED_OUT_MS, i);
+            Assert.assertEquals(100, ping.getDelayMs());
+            rate.now += 100;
+        }
+        //0.1 tokens left, wait for the other 0.9
+        rate.onPing(Ping.TIMED_OUT_MS, 11);
+        Assert.assertEquals(900, ping.getDelayMs());
+        rate.now += 900;
+        rate.onPing(Ping.TIMED_OUT_MS, 12);
+        Assert.assertEquals(1000, ping.getDelayMs());
+    }
+
+    @Test
+    public void testOptions() {
+        final AdaptiveRate rate = new AdaptiveRate(new TestNetworkEmulator.CountingListener());
+        try {
+            rate.setDelayRange(10, 5);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            rate.setDetection(0, 1, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            new AdaptiveRate(null);
+            Assert.fail();
+        } catch (NullPointerException e) {
+            //Correct path
+        }
+    }
+
+    /**
+     * An hour on a stable path with a 20s outage in the middle: far fewer probes than a fixed
+     * 1s rate and the outage is still caught and sampled densely.
+     */
+    @Test
+    public void testOutage() {
+        final NetworkEmulator emulator = new NetworkEmulator(5).setDelayModel(NetworkEmulator.normal(25, 2));
+        final long outageStart = HOUR_MS / 2;
+        final long outageEnd = outageStart + 20000;
+        final int[] outageTimeouts = new int[1];
+        final Ping[] pings = new Ping[1];
+        final TestNetworkEmulator.CountingListener counter = new TestNetworkEmulator.CountingListener();
+        final AdaptiveRate rate = new AdaptiveRate(new Ping.PingListener() {
+            @Override
+            public void onPing(final long timeMs, final int index) {
+                counter.onPing(timeMs, index);
+                final long now = emulator.nowMillis();
+                if (timeMs == Ping.TIMED_OUT_MS && now >= outageStart && now <= outageEnd + 1000) {
+                    outageTimeouts[0]++;
+                }
+                emulator.setLoss(now >= outageStart && now < outageEnd ? 1 : 0);
+                if (now >= HOUR_MS) {
+                    pings[0].setCount(0);
+                }
+            }
+
+            @Override
+            public void onPingException(final Exception e, final int index) {
+                counter.onPingException(e, index);
+            }
+        }) {
+            @Override
+            protected long now() {
+                return emulator.nowMillis();
+            }
+        };
+        final EmulatedPing ping = new EmulatedPing(null, rate, emulator);
+        pings[0] = ping;
+        ping.setTimeoutMs(1000);
+        ping.setCount(Integer.MAX_VALUE);
+        rate.setDelayRange(250, 10000);
+        rate.attach(ping);
+        ping.run();
+
+        Assert.assertNull(counter.exception);
+        Assert.assertTrue("Probes: " + counter.pingCount, counter.pingCount < 3600 / 4);
+        //Detected, then probed densely until it ended
+        Assert.assertTrue("Outage timeouts: " + outageTimeouts[0], outageTimeouts[0] >= 5);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.system.StructPollfd;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestEchoDemux {
+    /**
+     * In memory echo: every request comes back as a reply after a delay
+     */
+    static class LoopbackDemux extends EchoDemux {
+        final DelayQueue<Reply> replies = new DelayQueue<>();
+        final AtomicInteger sockets = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final List<Integer> trafficClasses = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile long delayMs;
+        volatile boolean forge;
+        volatile boolean fail;
+        private Reply mNext;
+
+        @Override
+        protected FileDescriptor socket(final int inet, final int proto) {
+            sockets.incrementAndGet();
+            return FileDescriptor.in;
+        }
+
+        @Override
+        protected void setsockoptInt(final FileDescriptor fd, final int level, final int option, final int value) {
+            trafficClasses.add(value);
+        }
+
+        @Override
+        protected int sendto(final FileDescriptor fd, final ByteBuffer byteBuffer, final InetAddress dest) {
+            final int length = byteBuffer.remaining();
+            final byte[] reply = new byte[length];
+            System.arraycopy(byteBuffer.array(), 0, reply, 0, length);
+            reply[0] = 0;
+            if (forge) {
+                //Flip a bit in the MAC
+                reply[8 + EchoStamp.SIZE - 1] ^= 1;
+            }
+            replies.add(new Reply(reply, System.nanoTime() + delayMs * 1000000L));
+            return length;
+        }
+
+        @Override
+        protected int poll(final StructPollfd[] structPollfds, final int timeoutMs) {
+            if (fail) {
+                throw new IllegalStateException("Reader failed");
+            }
+            try {
+                //Short polls so idle channels close quickly
+                mNext = replies.poll(Math.min(timeoutMs, 50), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            structPollfds[0].revents = mNext == null ? 0 : POLLIN;
+            return 0;
+        }
+
+        @Override
+        protected int recvfrom(final FileDescriptor fd, final byte[] buffer) {
+            System.arraycopy(mNext.mData, 0, buffer, 0, mNext.mData.length);
+            return mNext.mData.length;
+        }
+
+        @Override
+        protected void close(final FileDescriptor fd) {
+            closed.incrementAndGet();
+        }
+    }
+
+    static class Reply implements Delayed {
+        final byte[] mData;
+        final long mDue;
+
+        Reply(final byte[] data, final long due) {
+            mData = data;
+            mDue = due;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(mDue - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(mDue, ((Reply)other).mDue);
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void testManyPings() throws InterruptedException {
+        final LoopbackDemux demux = new LoopbackDemux();
+        demux.delayMs = 5;
+        final List<TestNetworkEmulator.CountingListener> listeners = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+            final Ping ping = new Ping((InetAddress)null, listener);
+            ping.setEchoDemux(demux);
+            ping.setCount(5);
+            ping.setDelayMs(10);
+            ping.setTimeoutMs(2000);
+            listeners.add(listener);
+            threads.add(new Thread(ping));
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        //Any misrouted reply would be rejected as stale and show up as a timeout
+        for (final TestNetworkEmulator.CountingListener listener : listeners) {
+            Assert.assertNull(listener.exception);
+            Assert.assertEquals(5, listener.pingCount);
+            Assert.assertEquals(0, listener.timeoutCount);
+            Assert.assertTrue(listener.minMs >= 5);
+        }
+        Assert.assertEquals(1, demux.sockets.get());
+        Assert.assertEquals(0, demux.getRegistrationCount());
+        Assert.assertEquals(0, demux.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testLateReply() {
+        final LoopbackDemux demux = new LoopbackDemux();
+        demux.delayMs = 150;
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final Ping ping = new Ping((InetAddress)null, listener);
+        ping.setEchoDemux(demux);
+        ping.setCount(3);
+        ping.setDelayMs(0);
+        ping.setTimeoutMs(100);
+        ping.run();
+        Assert.assertEquals(3, listener.timeoutCount);
+        //The replies to the first two probes arrive during the next probe
+        Assert.assertEquals(2, ping.getRejectedCount());
+        //Late isn't forged
+        Assert.assertEquals(0, demux.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testForgedReply() {
+        final LoopbackDemux demux = new LoopbackDemux();
+        demux.forge = true;
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final Ping ping = new Ping((InetAddress)null, listener);
+        ping.setEchoDemux(demux);
+        ping.setCount(2);
+        ping.setDelayMs(0);
+        ping.setTimeoutMs(50);
+        ping.run();
+        Assert.assertEquals(2, listener.timeoutCount);
+        Assert.assertEquals(2, demux.getDroppedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testChannelLifecycle() throws Exception {
+        final LoopbackDemux demux = new LoopbackDemux();
+        final EchoDemux.Registration first = demux.register(0, null, Ping.TRAFFIC_CLASS_NONE, 0, 0);
+        final EchoDemux.Registration second = demux.register(0, null, Ping.TRAFFIC_CLASS_NONE, 0, 0);
+        Assert.assertNotEquals(first.getToken(), second.getToken());
+        Assert.assertEquals(1, demux.getChannelCount());
+        Assert.assertEquals(1, demux.sockets.get());
+        first.close();
+        second.close();
+        //The reader notices the channel is idle and closes the socket
+        while (demux.getChannelCount() != 0) {
+            Thread.sleep(10);
+        }
+        while (demux.closed.get() != 1) {
+            Thread.sleep(10);
+        }
+        //And the next registration opens a new one
+        final EchoDemux.Registration third = demux.register(0, null, Ping.TRAFFIC_CLASS_NONE, 0, 0);
+        Assert.assertEquals(2, demux.sockets.get());
+        third.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testReaderFailure() throws Exception {
+        final LoopbackDemux demux = new LoopbackDemux();
+        final EchoDemux.Registration registration = demux.register(0, null, Ping.TRAFFIC_CLASS_NONE, 0, 0);
+        demux.fail = true;
+        while (demux.getChannelCount() != 0) {
+            Thread.sleep(10);
+        }
+        //Still registered, so the fd stays open rather than being reused under a send
+        Assert.assertEquals(0, demux.closed.get());
+        try {
+            registration.send(ByteBuffer.allocate(8), null, 0);
+            Assert.fail();
+        } catch (IOException e) {
+            //Correct path
+        }
+        registration.close();
+        Assert.assertEquals(1, demux.closed.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testTrafficClass() throws Exception {
+        final LoopbackDemux demux = new LoopbackDemux();
+        final EchoDemux.Registration none = demux.register(0, null, Ping.TRAFFIC_CLASS_NONE, 0, 0);
+        final EchoDemux.Registration ef = demux.register(0, null, 46 << 2, 0, 0);
+        final EchoDemux.Registration efToo = demux.register(0, null, 46 << 2, 0, 0);
+        //A socket per traffic class, set once when it is opened
+        Assert.assertEquals(2, demux.getChannelCount());
+        Assert.assertEquals(Collections.singletonList(46 << 2), demux.trafficClasses);
+        none.close();
+        ef.close();
+        efToo.close();
+
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final Ping ping = new Ping((InetAddress)null, listener);
+        ping.setEchoDemux(demux);
+        ping.setTrafficClass(10 << 2);
+        ping.setCount(1);
+        ping.run();
+        Assert.assertEquals(1, listener.pingCount);
+        Assert.assertTrue(demux.trafficClasses.contains(10 << 2));
+    }
+
+    @Test
+    public void testStampRestored() {
+        final LoopbackDemux demux = new LoopbackDemux();
+        final EchoStamp stamp = new EchoStamp();
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final Ping ping = new Ping((InetAddress)null, listener);
+        final EchoPacketBuilder builder = new EchoPacketBuilder(EchoPacketBuilder.TYPE_ICMP_V4, null);
+        builder.setStamp(stamp, 3);
+        ping.setEchoPacketBuilder(builder);
+        ping.setEchoDemux(demux);
+        ping.setCount(1);
+        ping.run();
+        Assert.assertEquals(0, listener.timeoutCount);
+        Assert.assertSame(stamp, builder.getStamp());
+        Assert.assertEquals(3, builder.getTarget());
+    }
+}
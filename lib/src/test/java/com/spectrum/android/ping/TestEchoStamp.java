@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+public class TestEchoStamp {
+    @Test
+    public void testSipHashVector() {
+        //Reference SipHash-2-4 vector: key 00..0f, message 00..0b
+        final EchoStamp stamp = new EchoStamp(0x0706050403020100L, 0x0f0e0d0c0b0a0908L);
+        Assert.assertEquals(0x751e8fbc860ee5fbL, stamp.mac(0x0706050403020100L, 0x0b0a0908));
+    }
+
+    @Test
+    public void testStampVerify() {
+        final EchoStamp stamp = new EchoStamp();
+        final byte[] data = new byte[4 + EchoStamp.SIZE];
+        stamp.stamp(data, 4, 123456789012345L, 42);
+        Assert.assertTrue(stamp.verify(data, 4, EchoStamp.SIZE));
+        Assert.assertEquals(123456789012345L, EchoStamp.getSendNanos(data, 4));
+        Assert.assertEquals(42, EchoStamp.getTarget(data, 4));
+
+        //Another key
+        Assert.assertFalse(new EchoStamp().verify(data, 4, EchoStamp.SIZE));
+        //Truncated
+        Assert.assertFalse(stamp.verify(data, 4, EchoStamp.SIZE - 1));
+        Assert.assertFalse(stamp.verify(data, 5, EchoStamp.SIZE));
+        //Tampered
+        for (int i = 4; i < data.length; i++) {
+            data[i] ^= 1;
+            Assert.assertFalse(stamp.verify(data, 4, EchoStamp.SIZE));
+            data[i] ^= 1;
+        }
+    }
+
+    @Test
+    public void testPacketBuilder() {
+        final EchoStamp stamp = new EchoStamp();
+        final EchoPacketBuilder builder = new EchoPacketBuilder(EchoPacketBuilder.TYPE_ICMP_V4, "abcd".getBytes());
+        builder.setStamp(stamp, 7);
+        //Short payloads are padded to fit the stamp
+        Assert.assertEquals(8 + EchoStamp.SIZE, builder.getPacketSize());
+        final ByteBuffer packet = builder.build(ByteBuffer.allocate(64), 99L);
+        Assert.assertEquals(8 + EchoStamp.SIZE, packet.limit());
+        Assert.assertEquals(0, EchoPacketBuilder.checksum(packet.array(), packet.limit()));
+        Assert.assertTrue(stamp.verify(packet.array(), 8, packet.limit() - 8));
+        Assert.assertEquals(99L, EchoStamp.getSendNanos(packet.array(), 8));
+        Assert.assertEquals(7, EchoStamp.getTarget(packet.array(), 8));
+
+        //Long payloads keep their tail
+        final byte[] payload = new byte[EchoStamp.SIZE + 2];
+        payload[EchoStamp.SIZE] = 'x';
+        payload[EchoStamp.SIZE + 1] = 'y';
+        final EchoPacketBuilder longBuilder = new EchoPacketBuilder(EchoPacketBuilder.TYPE_ICMP_V4, payload);
+        longBuilder.setStamp(stamp, 7);
+        final ByteBuffer longPacket = longBuilder.build();
+        Assert.assertEquals(8 + payload.length, longPacket.limit());
+        Assert.assertEquals('x', longPacket.get(8 + EchoStamp.SIZE));
+        Assert.assertEquals('y', longPacket.get(9 + EchoStamp.SIZE));
+    }
+
+    @Test
+    public void testPingRejectsForgedReply() {
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final MockPing ping = new MockPing(null, listener) {
+            @Override
+            protected int recvfrom(final FileDescriptor fd, final byte[] buffer) {
+                final int length = super.recvfrom(fd, buffer);
+                //Flip a bit in the MAC
+                buffer[8 + EchoStamp.SIZE - 1] ^= 1;
+                return length;
+            }
+        };
+        ping.setEchoStamp(new EchoStamp(), 0);
+        ping.setTimeoutMs(0);
+        ping.setCount(3);
+        ping.run();
+        Assert.assertEquals(3, listener.timeoutCount);
+        Assert.assertEquals(3, ping.getRejectedCount());
+        //Per run, like the listener callbacks
+        ping.run();
+        Assert.assertEquals(3, ping.getRejectedCount());
+    }
+
+    @Test
+    public void testPingAcceptsOwnReply() {
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final MockPing ping = new MockPing(null, listener);
+        ping.setEchoStamp(new EchoStamp(), 0);
+        ping.setCount(3);
+        ping.run();
+        Assert.assertEquals(3, listener.pingCount);
+        Assert.assertEquals(0, listener.timeoutCount);
+        Assert.assertEquals(0, ping.getRejectedCount());
+
+        //Clearing the stamp goes back to plain payloads
+        ping.setEchoStamp(null, 0);
+        ping.run();
+        Assert.assertEquals(6, listener.pingCount);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestIntMap {
+    @Test
+    public void testPutGetRemove() {
+        final IntMap<String> map = new IntMap<>();
+        Assert.assertNull(map.get(1));
+        Assert.assertTrue(map.put(1, "a"));
+        Assert.assertFalse(map.put(1, "b"));
+        Assert.assertEquals("a", map.get(1));
+        Assert.assertEquals("a", map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertNull(map.remove(1));
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testGrowAndChurn() {
+        final IntMap<Integer> map = new IntMap<>();
+        for (int i = 1; i <= 10000; i++) {
+            Assert.assertTrue(map.put(i, i));
+        }
+        Assert.assertEquals(10000, map.size());
+        for (int i = 1; i <= 10000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), map.get(i));
+        }
+        //Removed slots must not pile up and stall lookups
+        for (int i = 10001; i <= 1000000; i++) {
+            map.put(i, i);
+            map.remove(i - 10000);
+        }
+        Assert.assertEquals(10000, map.size());
+        Assert.assertNull(map.get(990000));
+        Assert.assertEquals(Integer.valueOf(990001), map.get(990001));
+        Assert.assertEquals(Integer.valueOf(-5), putGet(map, -5));
+    }
+
+    private static Integer putGet(final IntMap<Integer> map, final int key) {
+        map.put(key, key);
+        return map.get(key);
+    }
+
+    @Test
+    public void testReservedKeys() {
+        final IntMap<String> map = new IntMap<>();
+        try {
+            map.put(IntMap.EMPTY, "a");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            map.put(IntMap.REMOVED, "a");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+    }
+
+    /**
+     * Readers never see a stable key go missing while writers churn and grow the table
+     */
+    @Test(timeout = 10000)
+    public void testConcurrentReaders() throws InterruptedException {
+        final IntMap<Integer> map = new IntMap<>();
+        for (int i = 1; i <= 100; i++) {
+            map.put(i, i);
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger misses = new AtomicInteger();
+        final Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        for (int i = 1; i <= 100; i++) {
+                            final Integer value = map.get(i);
+                            if (value == null || value != i) {
+                                misses.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 1000; i < 200000; i++) {
+            map.put(i, i);
+            if (i % 3 != 0) {
+                map.remove(i);
+            }
+        }
+        done.set(true);
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        Assert.assertEquals(0, misses.get());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class TestLatencyUnderLoad {
+    /**
+     * Pretend load: makes the emulated path queue while running
+     */
+    static class BloatLoad implements LoadGenerator {
+        final NetworkEmulator emulator;
+        final NetworkEmulator.DelayModel idle;
+        final NetworkEmulator.DelayModel loaded;
+        boolean running;
+
+        BloatLoad(final NetworkEmulator emulator, final NetworkEmulator.DelayModel idle, final NetworkEmulator.DelayModel loaded) {
+            this.emulator = emulator;
+            this.idle = idle;
+            this.loaded = loaded;
+            emulator.setDelayModel(idle);
+        }
+
+        @Override
+        public void start() {
+            running = true;
+            emulator.setDelayModel(loaded);
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+            emulator.setDelayModel(idle);
+        }
+
+        @Override
+        public long getBytesSent() {
+            return 0;
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return 0;
+        }
+    }
+
+    private static LatencyUnderLoad newTest(final NetworkEmulator emulator, final LoadGenerator load) {
+        return new LatencyUnderLoad(null, load) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final Ping.PingListener listener) {
+                return new EmulatedPing(dest, listener, emulator);
+            }
+        };
+    }
+
+    @Test
+    public void testBloated() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(3);
+        final BloatLoad load = new BloatLoad(emulator, NetworkEmulator.normal(20, 1), NetworkEmulator.normal(270, 20));
+        final LatencyUnderLoad test = newTest(emulator, load);
+        final LatencyUnderLoad.Result result = test.measure();
+        Assert.assertFalse(load.running);
+        Assert.assertEquals(20, result.getIdleMedianMs(), 2);
+        Assert.assertEquals(270, result.getLoadedMedianMs(), 10);
+        Assert.assertEquals(LatencyUnderLoad.Grade.D, result.getGrade());
+        Assert.assertEquals(0f, result.getLoadedLoss(), 0.01f);
+    }
+
+    @Test
+    public void testNotBloated() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(3);
+        final BloatLoad load = new BloatLoad(emulator, NetworkEmulator.constant(20), NetworkEmulator.constant(22));
+        final LatencyUnderLoad.Result result = newTest(emulator, load).measure();
+        Assert.assertEquals(2, result.getDeltaMs());
+        Assert.assertEquals(LatencyUnderLoad.Grade.A_PLUS, result.getGrade());
+    }
+
+    @Test
+    public void testLossUnderLoad() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(3).setDelayModel(NetworkEmulator.constant(20));
+        final LatencyUnderLoad test = newTest(emulator, new LoadGenerator() {
+            @Override
+            public void start() {
+                emulator.setLoss(1);
+            }
+
+            @Override
+            public void stop() {
+                emulator.setLoss(0);
+            }
+
+            @Override
+            public long getBytesSent() {
+                return 0;
+            }
+
+            @Override
+            public long getBytesReceived() {
+                return 0;
+            }
+        });
+        final LatencyUnderLoad.Result result = test.measure();
+        Assert.assertEquals(20, result.getIdleMedianMs());
+        Assert.assertEquals(Ping.TIMED_OUT_MS, result.getLoadedMedianMs());
+        Assert.assertEquals(1f, result.getLoadedLoss(), 0.01f);
+        Assert.assertEquals(LatencyUnderLoad.Grade.F, result.getGrade());
+    }
+
+    @Test
+    public void testGrades() {
+        Assert.assertEquals(LatencyUnderLoad.Grade.A, grade(30));
+        Assert.assertEquals(LatencyUnderLoad.Grade.B, grade(31));
+        Assert.assertEquals(LatencyUnderLoad.Grade.C, grade(200));
+        Assert.assertEquals(LatencyUnderLoad.Grade.F, grade(401));
+    }
+
+    private static LatencyUnderLoad.Grade grade(final long deltaMs) {
+        return new LatencyUnderLoad.Result(new long[] {10, 10, 10}, new long[] {10 + deltaMs, 10 + deltaMs}, 0, 0).getGrade();
+    }
+
+    @Test
+    public void testPingFailure() {
+        final LatencyUnderLoad test = new LatencyUnderLoad(null, new BloatLoad(new NetworkEmulator(1),
+                NetworkEmulator.constant(1), NetworkEmulator.constant(1))) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final Ping.PingListener listener) {
+                return new MockPing(dest, listener) {
+                    @Override
+                    protected int poll(final android.system.StructPollfd[] structPollfds, final int timeoutMs) {
+                        return -1;
+                    }
+                };
+            }
+        };
+        try {
+            test.measure();
+            Assert.fail();
+        } catch (IOException e) {
+            //Correct path
+        }
+    }
+
+    /**
+     * Real sockets over loopback: a discard sink for upload and an endless source for download
+     */
+    @Test(timeout = 10000)
+    public void testSocketLoadGenerator() throws IOException, InterruptedException {
+        try (final ServerSocket sink = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+             final ServerSocket source = new ServerSocket(0, 8, InetAddress.getLoopbackAddress())) {
+            serve(sink, false);
+            serve(source, true);
+            final SocketLoadGenerator load = new SocketLoadGenerator(
+                    (InetSocketAddress)sink.getLocalSocketAddress(), (InetSocketAddress)source.getLocalSocketAddress(), 2);
+            load.start();
+            Thread.sleep(200);
+            load.stop();
+            final long sent = load.getBytesSent();
+            final long received = load.getBytesReceived();
+            Assert.assertTrue(sent > 0);
+            Assert.assertTrue(received > 0);
+            Thread.sleep(50);
+            //Stopped means stopped
+            Assert.assertEquals(sent, load.getBytesSent());
+            Assert.assertEquals(received, load.getBytesReceived());
+            //A second run counts from zero
+            load.start();
+            load.stop();
+            Assert.assertTrue(load.getBytesSent() < sent);
+        }
+    }
+
+    private static void serve(final ServerSocket serverSocket, final boolean send) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[16 * 1024];
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        final Thread stream = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try (final Socket s = socket) {
+                                    if (send) {
+                                        final OutputStream out = s.getOutputStream();
+                                        while (true) {
+                                            out.write(buffer);
+                                        }
+                                    } else {
+                                        final InputStream in = s.getInputStream();
+                                        final byte[] discard = new byte[16 * 1024];
+                                        while (in.read(discard) >= 0) {
+                                            //Discard
+                                        }
+                                    }
+                                } catch (IOException e) {
+                                    //Client went away
+                                }
+                            }
+                        });
+                        stream.setDaemon(true);
+                        stream.start();
+                    }
+                } catch (IOException e) {
+                    //Server closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
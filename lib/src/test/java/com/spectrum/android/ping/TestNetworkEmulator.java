@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestNetworkEmulator {
+    @Test
+    public void testConstantDelay() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(20));
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.run();
+        Assert.assertEquals(Ping.DEFAULT_COUNT, listener.pingCount);
+        Assert.assertEquals(0, listener.timeoutCount);
+        Assert.assertEquals(20, listener.minMs);
+        Assert.assertEquals(20, listener.maxMs);
+        //8 probes, 20ms each plus the 1000ms delay after each
+        Assert.assertEquals(Ping.DEFAULT_COUNT * 1020, emulator.nowMillis());
+    }
+
+    @Test
+    public void testTimeout() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(5000));
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.setTimeoutMs(200);
+        ping.setCount(3);
+        ping.run();
+        Assert.assertEquals(3, listener.timeoutCount);
+    }
+
+    @Test
+    public void testLateReply() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(300));
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.setTimeoutMs(200);
+        ping.setDelayMs(0);
+        ping.setCount(3);
+        ping.run();
+        //Without a delay between probes each late reply is taken as the reply to the next probe
+        Assert.assertEquals(1, listener.timeoutCount);
+        Assert.assertEquals(100, listener.minMs);
+        Assert.assertEquals(200, listener.maxMs);
+    }
+
+    @Test
+    public void testLateReplyStamped() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(300));
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.setEchoStamp(new EchoStamp(), 0);
+        ping.setTimeoutMs(200);
+        ping.setDelayMs(0);
+        ping.setCount(3);
+        ping.run();
+        //Late replies are recognised as stale and dropped
+        Assert.assertEquals(3, listener.timeoutCount);
+        Assert.assertEquals(2, ping.getRejectedCount());
+    }
+
+    @Test
+    public void testDuplicateStamped() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(20)).setDuplicate(1);
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.setEchoStamp(new EchoStamp(), 0);
+        ping.setDelayMs(0);
+        ping.setCount(5);
+        ping.run();
+        //Each probe skips the duplicate of the previous reply and waits for its own
+        Assert.assertEquals(0, listener.timeoutCount);
+        Assert.assertEquals(20, listener.minMs);
+        Assert.assertEquals(20, listener.maxMs);
+        Assert.assertEquals(4, ping.getRejectedCount());
+    }
+
+    @Test
+    public void testNanosPingListener() {
+        final long[] nanos = new long[2];
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.uniform(5, 6)).setLoss(0);
+        final EmulatedPing ping = new EmulatedPing(null, new Ping.NanosPingListener() {
+            @Override
+            public void onPingNanos(final long timeNanos, final int index) {
+                nanos[index] = timeNanos;
+            }
+
+            @Override
+            public void onPing(final long timeMs, final int index) {
+                Assert.fail();
+            }
+
+            @Override
+            public void onPingException(final Exception e, final int count) {
+                Assert.fail();
+            }
+        }, emulator);
+        ping.setCount(2);
+        ping.run();
+        //Sub millisecond resolution
+        Assert.assertTrue(nanos[0] > 5000000 && nanos[0] < 6000000);
+        Assert.assertNotEquals(nanos[0] / 1000000 * 1000000, nanos[0]);
+    }
+
+    @Test
+    public void testUniformLoss() {
+        final NetworkEmulator emulator = new NetworkEmulator(7).setLoss(0.25);
+        final byte[] packet = new byte[40];
+        for (int i = 0; i < 100000; i++) {
+            emulator.send(packet, packet.length);
+        }
+        Assert.assertEquals(0.25, emulator.getLost() / 100000.0, 0.01);
+    }
+
+    @Test
+    public void testGilbertElliottLoss() {
+        final NetworkEmulator emulator = new NetworkEmulator(7).setGilbertElliottLoss(0.01, 0.1, 0, 1);
+        final byte[] packet = new byte[40];
+        final byte[] buffer = new byte[40];
+        int bursts = 0;
+        boolean lost = false;
+        for (int i = 0; i < 100000; i++) {
+            emulator.send(packet, packet.length);
+            final boolean nowLost = !emulator.poll(0);
+            if (nowLost && !lost) {
+                bursts++;
+            }
+            lost = nowLost;
+            emulator.receive(buffer);
+        }
+        //Stationary loss is P(Bad) = 0.01 / (0.01 + 0.1) with a mean burst length of 1 / 0.1
+        Assert.assertEquals(0.0909, emulator.getLost() / 100000.0, 0.01);
+        Assert.assertEquals(10.0, emulator.getLost() / (double)bursts, 1.0);
+    }
+
+    @Test
+    public void testReplyIsEcho() {
+        final NetworkEmulator emulator = new NetworkEmulator(1);
+        final EchoPacketBuilder builder = new EchoPacketBuilder(EchoPacketBuilder.TYPE_ICMP_V4, "abcd".getBytes());
+        final byte[] packet = builder.build().array();
+        emulator.send(packet, packet.length);
+        Assert.assertTrue(emulator.poll(0));
+        final byte[] reply = new byte[packet.length];
+        Assert.assertEquals(packet.length, emulator.receive(reply));
+        Assert.assertEquals(0, reply[0]);
+        //A correct checksum sums to zero
+        Assert.assertEquals(0, EchoPacketBuilder.checksum(reply, reply.length));
+        Assert.assertEquals(-1, emulator.receive(reply));
+    }
+
+    @Test
+    public void testReorderAndDuplicate() {
+        final NetworkEmulator emulator = new NetworkEmulator(3)
+                .setReorder(0.5, 50)
+                .setDuplicate(0.5);
+        final byte[] buffer = new byte[1];
+        for (int i = 0; i < 100; i++) {
+            emulator.send(new byte[] {(byte)i}, 1);
+            emulator.advance(1000000L);
+        }
+        int outOfOrder = 0;
+        int received = 0;
+        int last = -1;
+        while (emulator.poll(1000)) {
+            emulator.receive(buffer);
+            received++;
+            if (buffer[0] < last) {
+                outOfOrder++;
+            }
+            last = buffer[0];
+        }
+        Assert.assertTrue(emulator.getReordered() > 0);
+        Assert.assertTrue(outOfOrder > 0);
+        Assert.assertEquals(100 + emulator.getDuplicated(), received);
+        Assert.assertEquals(received, emulator.getDelivered());
+    }
+
+    @Test
+    public void testBandwidthCap() {
+        final NetworkEmulator emulator = new NetworkEmulator(1)
+                .setDelayModel(NetworkEmulator.constant(10))
+                .setBandwidth(80000);
+        final byte[] packet = new byte[1000];
+        emulator.send(packet, packet.length);
+        emulator.send(packet, packet.length);
+        //1000 bytes at 80kbit/s takes 100ms, the second packet queues behind the first
+        Assert.assertTrue(emulator.poll(1000));
+        Assert.assertEquals(110, emulator.nowMillis());
+        emulator.receive(packet);
+        Assert.assertTrue(emulator.poll(1000));
+        Assert.assertEquals(210, emulator.nowMillis());
+    }
+
+    @Test
+    public void testDelayModels() {
+        final java.util.Random random = new java.util.Random(5);
+        final NetworkEmulator.DelayModel uniform = NetworkEmulator.uniform(10, 20);
+        final NetworkEmulator.DelayModel normal = NetworkEmulator.normal(5, 10);
+        final NetworkEmulator.DelayModel exponential = NetworkEmulator.exponential(10, 5);
+        for (int i = 0; i < 1000; i++) {
+            final long u = uniform.delayNanos(random);
+            Assert.assertTrue(u >= 10000000L && u < 20000000L);
+            Assert.assertTrue(normal.delayNanos(random) >= 0);
+            Assert.assertTrue(exponential.delayNanos(random) >= 10000000L);
+        }
+    }
+
+    /**
+     * Drive the real probe loop through many packets of every impairment at once
+     */
+    @Test
+    public void testLoad() {
+        final CountingListener listener = new CountingListener();
+        final NetworkEmulator emulator = new NetworkEmulator(11)
+                .setDelayModel(NetworkEmulator.normal(30, 5))
+                .setGilbertElliottLoss(0.001, 0.2, 0.0005, 0.5)
+                .setReorder(0.01, 5)
+                .setDuplicate(0.001);
+        final EmulatedPing ping = new EmulatedPing(null, listener, emulator);
+        ping.setDelayMs(0);
+        ping.setCount(100000);
+        ping.run();
+        Assert.assertEquals(100000, listener.pingCount);
+        Assert.assertEquals(100000, emulator.getSent());
+        Assert.assertNull(listener.exception);
+    }
+
+    static class CountingListener implements Ping.PingListener {
+        int pingCount;
+        int timeoutCount;
+        long minMs = Long.MAX_VALUE;
+        long maxMs = Long.MIN_VALUE;
+        Exception exception;
+
+        @Override
+        public void onPing(final long timeMs, final int count) {
+            pingCount++;
+            if (timeMs == Ping.TIMED_OUT_MS) {
+                timeoutCount++;
+            } else {
+                minMs = Math.min(minMs, timeMs);
+                maxMs = Math.max(maxMs, timeMs);
+            }
+        }
+
+        @Override
+        public void onPingException(final Exception e, final int count) {
+            exception = e;
+        }
+    }
+}
@@ -18,13 +18,17 @@ package com.spectrum.android.ping;
 
 import android.system.ErrnoException;
 
+import com.sun.management.ThreadMXBean;
+
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 
 public class TestPing {
@@ -60,6 +64,30 @@ public class TestPing {
         Assert.assertEquals(888, mockPing.getDelayMs());
     }
 
+    @Test
+    public void testTrafficClass() {
+        final MockPing mockPing = new MockPing(null, new MockPingListener());
+        mockPing.setCount(1);
+        mockPing.run();
+        Assert.assertEquals(Ping.IPTOS_LOWDELAY, mockPing.trafficClass);
+
+        mockPing.setTrafficClass(QosProbe.tos(QosProbe.DSCP_EF));
+        mockPing.run();
+        Assert.assertEquals(0xb8, mockPing.trafficClass);
+
+        mockPing.trafficClass = Ping.TRAFFIC_CLASS_NONE;
+        mockPing.setTrafficClass(Ping.TRAFFIC_CLASS_NONE);
+        mockPing.run();
+        Assert.assertEquals(Ping.TRAFFIC_CLASS_NONE, mockPing.trafficClass);
+
+        try {
+            mockPing.setTrafficClass(256);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+
+        }
+    }
+
     @Test
     public void testListenerRequired() {
 
@@ -116,6 +144,28 @@ public class TestPing {
     }
 
 
+    /**
+     * The probe loop must not allocate per probe, so timing stays stable on a busy device
+     */
+    @Test
+    public void testProbeLoopAllocation() {
+        final Object threadMXBean = ManagementFactory.getThreadMXBean();
+        //Per thread allocation counts are a HotSpot extension
+        Assume.assumeTrue(threadMXBean instanceof ThreadMXBean);
+        final ThreadMXBean allocations = (ThreadMXBean)threadMXBean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        final long threadId = Thread.currentThread().getId();
+        final MockPingListener listener = new MockPingListener();
+        final MockPing mockPing = new MockPing(null, listener);
+        mockPing.setCount(100000);
+        //Warm up
+        mockPing.run();
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        mockPing.run();
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+        Assert.assertTrue("Allocated " + allocated, allocated < 100000);
+    }
+
     class MockPingListener implements Ping.PingListener {
         int pingCount;
         int timeoutCount;
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+public class TestQosProbe {
+    /**
+     * Path that prioritises EF and starves CS1
+     */
+    private static QosProbe newProbe(final int... trafficClasses) {
+        return new QosProbe(null, trafficClasses) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final int trafficClass, final Ping.PingListener listener) {
+                final NetworkEmulator emulator = new NetworkEmulator(trafficClass);
+                if (trafficClass == tos(DSCP_EF)) {
+                    emulator.setDelayModel(NetworkEmulator.normal(15, 1));
+                } else if (trafficClass == tos(DSCP_CS1)) {
+                    emulator.setDelayModel(NetworkEmulator.normal(80, 5));
+                    emulator.setLoss(0.2);
+                } else {
+                    emulator.setDelayModel(NetworkEmulator.normal(40, 3));
+                }
+                return new EmulatedPing(dest, listener, emulator);
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void testDifferentiated() throws IOException {
+        final QosProbe probe = newProbe(QosProbe.tos(QosProbe.DSCP_BE), QosProbe.tos(QosProbe.DSCP_EF), QosProbe.tos(QosProbe.DSCP_CS1));
+        probe.setCount(50);
+        probe.setIntervalMs(30);
+        final QosProbe.Result result = probe.measure();
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(QosProbe.DSCP_EF, result.get(1).getDscp());
+        Assert.assertEquals(40, result.get(0).getMedianMs(), 3);
+        Assert.assertEquals(15, result.get(1).getMedianMs(), 2);
+        Assert.assertEquals(80, result.get(2).getMedianMs(), 5);
+        Assert.assertEquals(0f, result.get(0).getLoss(), 0.01f);
+        Assert.assertEquals(0.2f, result.get(2).getLoss(), 0.15f);
+        Assert.assertTrue(result.getMedianDeltaMs(1) < -20);
+        Assert.assertTrue(result.getMedianDeltaMs(2) > 30);
+        Assert.assertTrue(result.isDifferentiated(10));
+    }
+
+    @Test(timeout = 10000)
+    public void testNotDifferentiated() throws IOException {
+        final QosProbe probe = newProbe(QosProbe.tos(QosProbe.DSCP_BE), QosProbe.tos(QosProbe.DSCP_AF41));
+        probe.setCount(50);
+        probe.setIntervalMs(20);
+        final QosProbe.Result result = probe.measure();
+        Assert.assertEquals(result.get(0).getMedianMs(), result.get(1).getMedianMs(), 3);
+        Assert.assertFalse(result.isDifferentiated(10));
+    }
+
+    @Test(timeout = 10000)
+    public void testAllLost() throws IOException {
+        final QosProbe probe = new QosProbe(null, QosProbe.tos(QosProbe.DSCP_BE), QosProbe.tos(QosProbe.DSCP_EF)) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final int trafficClass, final Ping.PingListener listener) {
+                final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(10));
+                if (trafficClass != 0) {
+                    emulator.setLoss(1);
+                }
+                return new EmulatedPing(dest, listener, emulator);
+            }
+        };
+        probe.setCount(5);
+        probe.setIntervalMs(10);
+        final QosProbe.Result result = probe.measure();
+        Assert.assertEquals(Ping.TIMED_OUT_MS, result.get(1).getMedianMs());
+        Assert.assertEquals(1f, result.get(1).getLoss(), 0.01f);
+        Assert.assertEquals(QosProbe.Result.NO_DELTA, result.getMedianDeltaMs(1));
+        Assert.assertTrue(result.isDifferentiated(1000));
+    }
+
+    @Test(timeout = 10000)
+    public void testTrafficClassApplied() throws IOException {
+        final int[] applied = new int[2];
+        final QosProbe probe = new QosProbe(null, QosProbe.tos(QosProbe.DSCP_AF21), QosProbe.tos(QosProbe.DSCP_EF)) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final int trafficClass, final Ping.PingListener listener) {
+                final int slot = trafficClass == tos(DSCP_EF) ? 1 : 0;
+                return new MockPing(dest, listener) {
+                    @Override
+                    protected void setsockoptInt(final java.io.FileDescriptor fd, final int level, final int option, final int value) {
+                        applied[slot] = value;
+                    }
+                };
+            }
+        };
+        probe.setCount(2);
+        probe.measure();
+        Assert.assertEquals(0x48, applied[0]);
+        Assert.assertEquals(0xb8, applied[1]);
+    }
+
+    @Test
+    public void testPingFailure() {
+        final QosProbe probe = new QosProbe(null, 0, QosProbe.tos(QosProbe.DSCP_EF)) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final int trafficClass, final Ping.PingListener listener) {
+                return new MockPing(dest, listener) {
+                    @Override
+                    protected int poll(final android.system.StructPollfd[] structPollfds, final int timeoutMs) {
+                        return -1;
+                    }
+                };
+            }
+        };
+        try {
+            probe.measure();
+            Assert.fail();
+        } catch (IOException e) {
+            //Correct path
+        }
+    }
+
+    @Test
+    public void testOptions() {
+        Assert.assertEquals(0xb8, QosProbe.tos(QosProbe.DSCP_EF));
+        try {
+            QosProbe.tos(64);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            new QosProbe(null);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            new QosProbe(null, 0, 256);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import android.net.Network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestResolver {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static InetAddress address(final String literal) {
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Answers *.test with a v4 and a v6 address, everything else is unknown
+     */
+    static class MockLookup implements Resolver.Lookup {
+        final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        volatile long ttlMs = 1000;
+        volatile long blockMs;
+
+        @Override
+        public Resolver.Answer lookup(final String host, final Network network) throws UnknownHostException {
+            lookups.putIfAbsent(host, new AtomicInteger());
+            lookups.get(host).incrementAndGet();
+            if (blockMs > 0) {
+                try {
+                    Thread.sleep(blockMs);
+                } catch (InterruptedException e) {
+                    //Intentionally blank
+                }
+            }
+            if (!host.endsWith(".test")) {
+                throw new UnknownHostException(host);
+            }
+            return new Resolver.Answer(new InetAddress[] {address("192.0.2.1"), address("2001:db8::1")}, ttlMs);
+        }
+
+        int count(final String host) {
+            final AtomicInteger count = lookups.get(host);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    static class MockResolver extends Resolver {
+        long now;
+
+        MockResolver(final Lookup lookup, final Executor executor, final int capacity) {
+            super(lookup, executor, capacity);
+        }
+
+        @Override
+        protected long now() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testCacheAndTtl() throws UnknownHostException {
+        final MockLookup lookup = new MockLookup();
+        final MockResolver resolver = new MockResolver(lookup, DIRECT, 8);
+        resolver.setRefreshHits(Integer.MAX_VALUE);
+        Assert.assertEquals(address("192.0.2.1"), resolver.resolve("a.test", Resolver.FAMILY_ANY, null));
+        resolver.now = 999;
+        Assert.assertEquals(address("2001:db8::1"), resolver.resolve("a.test", Resolver.FAMILY_IPV6, null));
+        Assert.assertEquals(1, lookup.count("a.test"));
+        resolver.now = 1000;
+        Assert.assertEquals(address("192.0.2.1"), resolver.resolve("a.test", Resolver.FAMILY_IPV4, null));
+        Assert.assertEquals(2, lookup.count("a.test"));
+    }
+
+    @Test
+    public void testNegativeCache() {
+        final MockLookup lookup = new MockLookup();
+        final MockResolver resolver = new MockResolver(lookup, DIRECT, 8);
+        resolver.setNegativeTtlMs(100);
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("nowhere.invalid", Resolver.FAMILY_ANY, null);
+                Assert.fail();
+            } catch (UnknownHostException e) {
+                //Correct path
+            }
+        }
+        Assert.assertEquals(1, lookup.count("nowhere.invalid"));
+        resolver.now = 100;
+        try {
+            resolver.resolve("nowhere.invalid", Resolver.FAMILY_ANY, null);
+            Assert.fail();
+        } catch (UnknownHostException e) {
+            //Correct path
+        }
+        Assert.assertEquals(2, lookup.count("nowhere.invalid"));
+    }
+
+    @Test
+    public void testLru() throws UnknownHostException {
+        final MockLookup lookup = new MockLookup();
+        final MockResolver resolver = new MockResolver(lookup, DIRECT, 2);
+        resolver.setRefreshHits(Integer.MAX_VALUE);
+        resolver.resolveAll("a.test", null);
+        resolver.resolveAll("b.test", null);
+        //Touch a, so b is the eldest
+        resolver.resolveAll("a.test", null);
+        resolver.resolveAll("c.test", null);
+        Assert.assertEquals(2, resolver.size());
+        resolver.resolveAll("a.test", null);
+        Assert.assertEquals(1, lookup.count("a.test"));
+        resolver.resolveAll("b.test", null);
+        Assert.assertEquals(2, lookup.count("b.test"));
+    }
+
+    @Test
+    public void testRefreshAhead() throws UnknownHostException {
+        final MockLookup lookup = new MockLookup();
+        final List<Runnable> background = new ArrayList<>();
+        final MockResolver resolver = new MockResolver(lookup, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                background.add(runnable);
+            }
+        }, 8);
+        resolver.setRefreshHits(2);
+        resolver.setRefreshFraction(0.5f);
+        resolver.resolveAll("a.test", null);
+        resolver.now = 600;
+        //First hit, not popular yet
+        resolver.resolveAll("a.test", null);
+        Assert.assertTrue(background.isEmpty());
+        //Popular and past half its TTL: served from cache and refreshed once in the background
+        resolver.resolveAll("a.test", null);
+        resolver.resolveAll("a.test", null);
+        Assert.assertEquals(1, background.size());
+        Assert.assertEquals(1, lookup.count("a.test"));
+        background.remove(0).run();
+        Assert.assertEquals(2, lookup.count("a.test"));
+        //The refreshed entry lives past the original expiry
+        resolver.now = 1500;
+        resolver.resolveAll("a.test", null);
+        Assert.assertEquals(2, lookup.count("a.test"));
+    }
+
+    @Test
+    public void testRefreshFailure() throws UnknownHostException {
+        final MockLookup lookup = new MockLookup() {
+            volatile boolean fail;
+
+            @Override
+            public Resolver.Answer lookup(final String host, final Network network) throws UnknownHostException {
+                if (fail) {
+                    fail = false;
+                    throw new SecurityException("No INTERNET permission");
+                }
+                fail = count(host) == 0;
+                return super.lookup(host, network);
+            }
+        };
+        final List<Runnable> background = new ArrayList<>();
+        final MockResolver resolver = new MockResolver(lookup, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                background.add(runnable);
+            }
+        }, 8);
+        resolver.setRefreshHits(1);
+        resolver.setRefreshFraction(0.5f);
+        resolver.resolveAll("a.test", null);
+        resolver.now = 600;
+        resolver.resolveAll("a.test", null);
+        //The refresh blows up
+        background.remove(0).run();
+        //The next hit tries again
+        resolver.resolveAll("a.test", null);
+        Assert.assertEquals(1, background.size());
+        background.remove(0).run();
+        Assert.assertEquals(2, lookup.count("a.test"));
+    }
+
+    @Test(timeout = 5000)
+    public void testBatchRejected() throws InterruptedException {
+        final MockLookup lookup = new MockLookup();
+        final Resolver resolver = new Resolver(lookup, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                throw new java.util.concurrent.RejectedExecutionException();
+            }
+        }, 16);
+        final Map<String, InetAddress[]> results = resolver.resolveAll(Arrays.asList("a.test", "b.test"), null);
+        Assert.assertEquals(2, results.size());
+    }
+
+    @Test
+    public void testFamily() throws UnknownHostException {
+        final InetAddress[] v4Only = {address("192.0.2.1")};
+        Assert.assertEquals(v4Only[0], Resolver.select("a.test", v4Only, Resolver.FAMILY_IPV4));
+        try {
+            Resolver.select("a.test", v4Only, Resolver.FAMILY_IPV6);
+            Assert.fail();
+        } catch (UnknownHostException e) {
+            //Correct path
+        }
+        try {
+            Resolver.select("a.test", v4Only, 5);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+    }
+
+    @Test
+    public void testBatch() throws InterruptedException, UnknownHostException {
+        final MockLookup lookup = new MockLookup();
+        lookup.blockMs = 200;
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final Resolver resolver = new Resolver(lookup, executor, 16);
+            final long start = System.nanoTime();
+            final Map<String, InetAddress[]> results = resolver.resolveAll(
+                    Arrays.asList("a.test", "b.test", "c.test", "d.test", "a.test", "nowhere.invalid"), null);
+            final long elapsedMs = (System.nanoTime() - start) / 1000000L;
+            Assert.assertEquals(4, results.size());
+            Assert.assertNull(results.get("nowhere.invalid"));
+            Assert.assertEquals(1, lookup.count("a.test"));
+            //Parallel, so about one lookup long rather than five
+            Assert.assertTrue("Took " + elapsedMs, elapsedMs < 800);
+            //Results are copies, writing to one doesn't touch the cache
+            final InetAddress first = results.get("a.test")[0];
+            results.get("a.test")[0] = null;
+            final Map<String, InetAddress[]> cached = resolver.resolveAll(Collections.singletonList("a.test"), null);
+            Assert.assertSame(first, cached.get("a.test")[0]);
+            cached.get("a.test")[0] = null;
+            Assert.assertSame(first, resolver.resolveAll("a.test", null)[0]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPingHost() {
+        final MockLookup lookup = new MockLookup();
+        final Resolver resolver = new Resolver(lookup, DIRECT, 8);
+        final TestPing.MockPingListener listener = new TestPing().new MockPingListener();
+        final MockPing ping = new MockPing("a.test", Resolver.FAMILY_IPV6, listener);
+        ping.setResolver(resolver);
+        Assert.assertNull(ping.getDestination());
+        ping.run();
+        Assert.assertTrue(ping.getDestination() instanceof Inet6Address);
+        Assert.assertEquals(Ping.DEFAULT_COUNT, listener.pingCount);
+        ping.run();
+        Assert.assertEquals(1, lookup.count("a.test"));
+    }
+
+    @Test
+    public void testPingUnknownHost() {
+        final Resolver resolver = new Resolver(new MockLookup(), DIRECT, 8);
+        final TestPing.MockPingListener listener = new TestPing().new MockPingListener();
+        final MockPing ping = new MockPing("nowhere.invalid", Resolver.FAMILY_ANY, listener);
+        ping.setResolver(resolver);
+        ping.run();
+        Assert.assertTrue(listener.exception instanceof UnknownHostException);
+        Assert.assertEquals(0, listener.pingCount);
+    }
+}
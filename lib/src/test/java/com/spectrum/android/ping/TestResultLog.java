@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class TestResultLog {
+    private static final long START = 1546300800000L;
+
+    private static File newLogDirectory() throws IOException {
+        final File directory = File.createTempFile("resultlog", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testVarint() {
+        final ByteBuffer buffer = ByteBuffer.allocate(ResultLog.MAX_VARINT64);
+        final long[] values = {0, 1, -1, 63, -64, 64, 1000, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (final long value : values) {
+            buffer.clear();
+            ResultLog.putVarint(buffer, ResultLog.zigzag(value));
+            buffer.flip();
+            Assert.assertEquals(value, ResultLog.unzigzag(ResultLog.getVarint(buffer)));
+        }
+        buffer.clear();
+        ResultLog.putVarint(buffer, ResultLog.zigzag(-64));
+        Assert.assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter writer = new ResultLogWriter(directory);
+        writer.append("google.com", START, 20);
+        writer.append("2001:4860:4860::8888", START + 5, 31);
+        writer.append("google.com", START + 1000, Ping.TIMED_OUT_MS);
+        writer.append("google.com", START + 2000, 0, ResultLog.STATUS_ERROR);
+        writer.append("google.com", START + 3000, 18);
+        writer.close();
+
+        final ResultLogReader reader = new ResultLogReader(directory);
+        assertNext(reader, "google.com", START, 20, ResultLog.STATUS_OK);
+        assertNext(reader, "2001:4860:4860::8888", START + 5, 31, ResultLog.STATUS_OK);
+        assertNext(reader, "google.com", START + 1000, Ping.TIMED_OUT_MS, ResultLog.STATUS_TIMEOUT);
+        assertNext(reader, "google.com", START + 2000, Ping.TIMED_OUT_MS, ResultLog.STATUS_ERROR);
+        assertNext(reader, "google.com", START + 3000, 18, ResultLog.STATUS_OK);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter writer = new ResultLogWriter(directory);
+        final Random random = new Random(1);
+        final int samples = 10000;
+        for (int i = 0; i < samples; i++) {
+            writer.append("google.com", START + i * 1000L + random.nextInt(20), 20 + random.nextInt(10));
+        }
+        writer.close();
+        final File[] segments = ResultLog.listSegments(directory);
+        Assert.assertEquals(1, segments.length);
+        //1 byte tag, 1 byte target, 2 byte timestamp, 1 byte rtt and 1 check byte
+        Assert.assertTrue(segments[0].length() <= ResultLog.HEADER_SIZE + 32 + samples * 6);
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter writer = new ResultLogWriter(directory, 256);
+        for (int i = 0; i < 500; i++) {
+            writer.append(i % 2 == 0 ? "a.example.com" : "b.example.com", START + i * 1000L, i);
+        }
+        writer.rotate();
+        writer.append("a.example.com", START + 500 * 1000L, 500);
+        writer.close();
+        Assert.assertTrue(ResultLog.listSegments(directory).length > 10);
+
+        final ResultLogReader reader = new ResultLogReader(directory);
+        for (int i = 0; i <= 500; i++) {
+            assertNext(reader, i % 2 == 0 ? "a.example.com" : "b.example.com", START + i * 1000L, i, ResultLog.STATUS_OK);
+        }
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testReopenAfterClose() throws IOException {
+        final File directory = newLogDirectory();
+        ResultLogWriter writer = new ResultLogWriter(directory);
+        writer.append("google.com", START, 20);
+        writer.close();
+        writer = new ResultLogWriter(directory);
+        writer.append("google.com", START + 1000, 21);
+        writer.close();
+        //Closed segments are sealed
+        Assert.assertEquals(2, ResultLog.listSegments(directory).length);
+
+        final ResultLogReader reader = new ResultLogReader(directory);
+        assertNext(reader, "google.com", START, 20, ResultLog.STATUS_OK);
+        assertNext(reader, "google.com", START + 1000, 21, ResultLog.STATUS_OK);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testCrashRecovery() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter crashed = new ResultLogWriter(directory, 4096);
+        crashed.append("google.com", START, 20);
+        crashed.append("google.com", START + 1000, 25);
+        final File segment = crashed.getCurrentSegment();
+        //Simulate dying mid append: record body written, tag not yet published
+        final long tail = ResultLog.HEADER_SIZE + 14 + 5 + 6;
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            Assert.assertEquals(0, readByte(file, tail));
+            file.seek(tail + 1);
+            file.write(new byte[] {0, 0x7F, 0x7F, 0x7F});
+        }
+
+        final ResultLogWriter writer = new ResultLogWriter(directory, 4096);
+        Assert.assertEquals(segment, writer.getCurrentSegment());
+        writer.append("google.com", START + 2000, 22);
+        writer.append("yahoo.com", START + 3000, 40);
+        writer.close();
+
+        final ResultLogReader reader = new ResultLogReader(directory);
+        assertNext(reader, "google.com", START, 20, ResultLog.STATUS_OK);
+        assertNext(reader, "google.com", START + 1000, 25, ResultLog.STATUS_OK);
+        assertNext(reader, "google.com", START + 2000, 22, ResultLog.STATUS_OK);
+        assertNext(reader, "yahoo.com", START + 3000, 40, ResultLog.STATUS_OK);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testCrashBeforeHeader() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter crashed = new ResultLogWriter(directory, 4096);
+        crashed.append("google.com", START, 20);
+        final File segment = crashed.getCurrentSegment();
+        //Simulate dying before the magic was written
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.write(new byte[4]);
+        }
+
+        final ResultLogWriter writer = new ResultLogWriter(directory, 4096);
+        Assert.assertEquals(0, ResultLog.listSegments(directory).length);
+        writer.append("yahoo.com", START + 1000, 40);
+        //The torn segment's number is reused rather than leaving an empty file behind
+        Assert.assertEquals(segment, writer.getCurrentSegment());
+        writer.close();
+        Assert.assertEquals(1, ResultLog.listSegments(directory).length);
+
+        final ResultLogReader reader = new ResultLogReader(directory);
+        assertNext(reader, "yahoo.com", START + 1000, 40, ResultLog.STATUS_OK);
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testCorruptRecord() throws IOException {
+        final File directory = newLogDirectory();
+        final ResultLogWriter writer = new ResultLogWriter(directory);
+        writer.append("google.com", START, 20);
+        writer.append("google.com", START + 1000, 25);
+        writer.append("google.com", START + 2000, 30);
+        writer.close();
+        //Flip the rtt of the second sample
+        final File segment = ResultLog.listSegments(directory)[0];
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            final long position = ResultLog.HEADER_SIZE + 14 + 5 + 4;
+            final int value = readByte(file, position);
+            file.seek(position);
+            file.write(value ^ 0x02);
+        }
+        final ResultLogReader reader = new ResultLogReader(directory);
+        assertNext(reader, "google.com", START, 20, ResultLog.STATUS_OK);
+        Assert.assertFalse(reader.next());
+    }
+
+    private static int readByte(final RandomAccessFile file, final long position) throws IOException {
+        file.seek(position);
+        return file.read();
+    }
+
+    private static void assertNext(final ResultLogReader reader, final String target, final long timestampMs,
+                                   final long rttMs, final int status) throws IOException {
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(target, reader.getTarget());
+        Assert.assertEquals(timestampMs, reader.getTimestampMs());
+        Assert.assertEquals(rttMs, reader.getRttMs());
+        Assert.assertEquals(status, reader.getStatus());
+    }
+}
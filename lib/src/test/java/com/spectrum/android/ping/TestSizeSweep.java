@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+
+public class TestSizeSweep {
+    private static SizeSweep newSweep(final NetworkEmulator emulator, final int... payloadSizes) {
+        return new SizeSweep(null, payloadSizes) {
+            @Override
+            protected Ping createPing(final InetAddress dest, final Ping.PingListener listener) {
+                return new EmulatedPing(dest, listener, emulator);
+            }
+
+            @Override
+            protected Random newRandom() {
+                //Same order every run, so the emulator's delays land on the same sizes
+                return new Random(1);
+            }
+        };
+    }
+
+    @Test
+    public void testCapacity() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(5)
+                .setDelayModel(NetworkEmulator.exponential(20, 0.5))
+                .setBandwidth(10000000);
+        final SizeSweep sweep = newSweep(emulator, SizeSweep.linearSizes(0, 1400, 8));
+        sweep.setRounds(20);
+        final SizeSweep.Result result = sweep.measure();
+        Assert.assertEquals(8, result.getPoints());
+        //10Mbit/s is 800ns per byte
+        Assert.assertEquals(800, result.getSlopeNanosPerByte(), 40);
+        Assert.assertEquals(10000000, result.getBitsPerSecond(), 500000);
+        Assert.assertEquals(20000000, result.getInterceptNanos(), 500000);
+        Assert.assertTrue("r2 " + result.getRSquared(), result.getRSquared() > 0.99);
+        //Stamps pad the smallest payload
+        Assert.assertEquals(8 + EchoStamp.SIZE, result.getPacketSize(0));
+        Assert.assertEquals(8 + 1400, result.getPacketSize(7));
+        Assert.assertTrue(result.getMinRttNanos(0) < result.getMinRttNanos(7));
+    }
+
+    @Test
+    public void testInterleaved() throws IOException {
+        final int[] sizes = new int[2];
+        final int[] runs = new int[1];
+        final NetworkEmulator emulator = new NetworkEmulator(1) {
+            private int mLast = -1;
+
+            @Override
+            public void send(final byte[] packet, final int length) {
+                if (length != mLast) {
+                    runs[0]++;
+                }
+                mLast = length;
+                sizes[length < 100 ? 0 : 1]++;
+                super.send(packet, length);
+            }
+        };
+        final SizeSweep sweep = newSweep(emulator, 64, 1000);
+        sweep.setRounds(50);
+        sweep.measure();
+        Assert.assertEquals(50, sizes[0]);
+        Assert.assertEquals(50, sizes[1]);
+        //Not one block per size
+        Assert.assertTrue("Runs " + runs[0], runs[0] > 10);
+    }
+
+    @Test
+    public void testNoReplies() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(1).setLoss(1);
+        final SizeSweep sweep = newSweep(emulator, 64, 1000);
+        sweep.setRounds(2);
+        sweep.setTimeoutMs(10);
+        final SizeSweep.Result result = sweep.measure();
+        Assert.assertEquals(0, result.getPoints());
+        Assert.assertEquals(Ping.TIMED_OUT_MS, result.getMinRttNanos(0));
+        Assert.assertTrue(Double.isNaN(result.getSlopeNanosPerByte()));
+        Assert.assertTrue(Double.isNaN(result.getBitsPerSecond()));
+    }
+
+    @Test
+    public void testFlat() throws IOException {
+        final NetworkEmulator emulator = new NetworkEmulator(1).setDelayModel(NetworkEmulator.constant(10));
+        final SizeSweep.Result result = newSweep(emulator, 64, 500, 1000).measure();
+        Assert.assertEquals(0, result.getSlopeNanosPerByte(), 0);
+        Assert.assertEquals(10000000, result.getInterceptNanos(), 0);
+        Assert.assertTrue(Double.isNaN(result.getBitsPerSecond()));
+    }
+
+    @Test
+    public void testOptions() {
+        Assert.assertArrayEquals(new int[] {100, 200, 300}, SizeSweep.linearSizes(100, 300, 3));
+        try {
+            new SizeSweep(null, 64);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            new SizeSweep(null, 64, EchoPacketBuilder.MAX_PAYLOAD + 1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+        try {
+            new SizeSweep(null, 64, 128).setRounds(0);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 Charter Communications
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spectrum.android.ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestWakeScheduler {
+    private static final int TARGETS = 6;
+    private static final int PROBES = 5;
+
+    @Test(timeout = 10000)
+    public void testCoalesce() throws InterruptedException {
+        final WakeScheduler scheduler = new WakeScheduler(100);
+        final AtomicLong early = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < TARGETS; t++) {
+            final long offsetMs = t * 15;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(offsetMs);
+                        for (int i = 0; i < PROBES; i++) {
+                            final long start = System.nanoTime();
+                            scheduler.await(50);
+                            if (System.nanoTime() - start < 49000000L) {
+                                early.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, early.get());
+        Assert.assertEquals(TARGETS * PROBES, scheduler.getRequests());
+        //Staggered starts share at most the first couple of slots, after that everyone is in step
+        Assert.assertTrue("Wakeups: " + scheduler.getWakeups(), scheduler.getWakeups() <= PROBES + 2);
+    }
+
+    @Test(timeout = 10000)
+    public void testNoSlack() throws InterruptedException {
+        final WakeScheduler scheduler = new WakeScheduler(0);
+        final long start = System.nanoTime();
+        scheduler.await(30);
+        scheduler.await(30);
+        Assert.assertTrue(System.nanoTime() - start >= 60000000L);
+        Assert.assertEquals(2, scheduler.getWakeups());
+    }
+
+    @Test(timeout = 10000)
+    public void testPing() {
+        final WakeScheduler scheduler = new WakeScheduler(20);
+        final TestNetworkEmulator.CountingListener listener = new TestNetworkEmulator.CountingListener();
+        final MockPing ping = new MockPing(null, listener);
+        ping.setDelayMs(10);
+        ping.setCount(3);
+        ping.setWakeScheduler(scheduler);
+        ping.run();
+        Assert.assertEquals(3, listener.pingCount);
+        Assert.assertEquals(3, scheduler.getRequests());
+    }
+
+    @Test(timeout = 10000)
+    public void testIdleTimerExits() throws InterruptedException {
+        final WakeScheduler scheduler = new WakeScheduler(0);
+        scheduler.await(10);
+        while (scheduler.hasTimer()) {
+            Thread.sleep(5);
+        }
+        //Restarted on demand
+        scheduler.await(10);
+        scheduler.await(10);
+        Assert.assertEquals(3, scheduler.getWakeups());
+    }
+
+    @Test
+    public void testOptions() {
+        try {
+            new WakeScheduler(-1);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //Correct path
+        }
+    }
+}